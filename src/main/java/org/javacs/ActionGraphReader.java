@@ -0,0 +1,231 @@
+package org.javacs;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * ActionGraphReader reads the output of `bazel aquery --output=proto` as it streams in, and keeps only what's needed
+ * to find the paths that follow one argument of the actions. The action graph of a large workspace can be hundreds of
+ * MB, so instead of parsing the whole ActionGraphContainer, it reads the wire format field by field and skips
+ * targets, dep sets, configurations and arguments it doesn't need.
+ *
+ * <p>Both versions of analysis.proto are understood. In v1 artifact ids are strings and artifacts have an exec path;
+ * in v2 ids are integers and paths are stored as a tree of path fragments. The version is recognized by the wire type
+ * of the first artifact id.
+ */
+class ActionGraphReader {
+    // ActionGraphContainer
+    private static final int ARTIFACTS = 1, ACTIONS = 2, PATH_FRAGMENTS = 8;
+    // Artifact
+    private static final int ARTIFACT_ID = 1, ARTIFACT_PATH = 2;
+    // Action
+    private static final int ACTION_ARGUMENTS = 6, ACTION_OUTPUT_IDS = 9;
+    // PathFragment
+    private static final int FRAGMENT_ID = 1, FRAGMENT_LABEL = 2, FRAGMENT_PARENT_ID = 3;
+
+    private final String filterArgument;
+    /** Arguments that follow filterArgument in any action */
+    private final Set<String> argumentPaths = new HashSet<>();
+    /** The output_ids fields of every action, which can only be decoded once we know the version */
+    private final List<ByteString> outputIds = new ArrayList<>();
+    /** v2 output ids that were written unpacked */
+    private final Set<Integer> unpackedOutputIds = new HashSet<>();
+    /** v1 artifacts, id to exec path */
+    private final Map<String, String> execPaths = new HashMap<>();
+    /** v2 artifacts, id to path fragment id */
+    private final Map<Integer, Integer> fragmentIds = new HashMap<>();
+    /** v2 path fragments by id */
+    private final Map<Integer, Fragment> fragments = new HashMap<>();
+    /** Cache of buildPath, so shared parent directories are only joined once */
+    private final Map<Integer, String> builtPaths = new HashMap<>();
+
+    private static class Fragment {
+        final String label;
+        final int parentId;
+
+        Fragment(String label, int parentId) {
+            this.label = label;
+            this.parentId = parentId;
+        }
+    }
+
+    private ActionGraphReader(String filterArgument) {
+        this.filterArgument = filterArgument;
+    }
+
+    /**
+     * The paths that follow `filterArgument` in any action, and correspond to an artifact that is not itself the
+     * output of one of the actions, unless `filterArgument` is --output.
+     */
+    static Set<String> read(InputStream in, String filterArgument) throws IOException {
+        var reader = new ActionGraphReader(filterArgument);
+        reader.readContainer(CodedInputStream.newInstance(in));
+        return reader.result();
+    }
+
+    private void readContainer(CodedInputStream in) throws IOException {
+        while (true) {
+            var tag = in.readTag();
+            if (tag == 0) return;
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case ARTIFACTS:
+                    readMessage(in, this::readArtifact);
+                    break;
+                case ACTIONS:
+                    readMessage(in, this::readAction);
+                    break;
+                case PATH_FRAGMENTS:
+                    readMessage(in, this::readPathFragment);
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+    }
+
+    private interface MessageReader {
+        void read(CodedInputStream in) throws IOException;
+    }
+
+    private static void readMessage(CodedInputStream in, MessageReader reader) throws IOException {
+        var length = in.readRawVarint32();
+        var limit = in.pushLimit(length);
+        reader.read(in);
+        in.popLimit(limit);
+    }
+
+    private void readArtifact(CodedInputStream in) throws IOException {
+        String v1Id = null, execPath = null;
+        int v2Id = 0, fragmentId = 0;
+        var isV1 = false;
+        while (true) {
+            var tag = in.readTag();
+            if (tag == 0) break;
+            var field = WireFormat.getTagFieldNumber(tag);
+            var wireType = WireFormat.getTagWireType(tag);
+            if (field == ARTIFACT_ID && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                v1Id = in.readString();
+                isV1 = true;
+            } else if (field == ARTIFACT_ID && wireType == WireFormat.WIRETYPE_VARINT) {
+                v2Id = in.readUInt32();
+            } else if (field == ARTIFACT_PATH && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                execPath = in.readString();
+                isV1 = true;
+            } else if (field == ARTIFACT_PATH && wireType == WireFormat.WIRETYPE_VARINT) {
+                fragmentId = in.readUInt32();
+            } else {
+                in.skipField(tag);
+            }
+        }
+        if (isV1) {
+            execPaths.put(v1Id == null ? "" : v1Id, execPath == null ? "" : execPath);
+        } else {
+            fragmentIds.put(v2Id, fragmentId);
+        }
+    }
+
+    private void readAction(CodedInputStream in) throws IOException {
+        var isFilterArgument = false;
+        while (true) {
+            var tag = in.readTag();
+            if (tag == 0) break;
+            var field = WireFormat.getTagFieldNumber(tag);
+            var wireType = WireFormat.getTagWireType(tag);
+            if (field == ACTION_ARGUMENTS) {
+                var argument = in.readString();
+                if (isFilterArgument && argument.startsWith("-")) {
+                    isFilterArgument = false;
+                    continue;
+                }
+                if (!isFilterArgument) {
+                    isFilterArgument = argument.equals(filterArgument);
+                    continue;
+                }
+                argumentPaths.add(argument);
+            } else if (field == ACTION_OUTPUT_IDS && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                outputIds.add(in.readBytes());
+            } else if (field == ACTION_OUTPUT_IDS && wireType == WireFormat.WIRETYPE_VARINT) {
+                unpackedOutputIds.add(in.readUInt32());
+            } else {
+                in.skipField(tag);
+            }
+        }
+    }
+
+    private void readPathFragment(CodedInputStream in) throws IOException {
+        var id = 0;
+        var parentId = 0;
+        var label = "";
+        while (true) {
+            var tag = in.readTag();
+            if (tag == 0) break;
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FRAGMENT_ID:
+                    id = in.readUInt32();
+                    break;
+                case FRAGMENT_LABEL:
+                    label = in.readString();
+                    break;
+                case FRAGMENT_PARENT_ID:
+                    parentId = in.readUInt32();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        fragments.put(id, new Fragment(label, parentId));
+    }
+
+    private Set<String> result() throws IOException {
+        var artifactPaths = new HashSet<String>();
+        var skipOutputs = !filterArgument.equals("--output");
+        if (!execPaths.isEmpty()) {
+            var outputs = new HashSet<String>();
+            for (var bytes : outputIds) {
+                outputs.add(bytes.toStringUtf8());
+            }
+            for (var e : execPaths.entrySet()) {
+                var relative = e.getValue();
+                if (!argumentPaths.contains(relative)) continue;
+                if (skipOutputs && outputs.contains(e.getKey())) continue;
+                LOG.info("...found bazel dependency " + relative);
+                artifactPaths.add(relative);
+            }
+        } else {
+            var outputs = new HashSet<Integer>(unpackedOutputIds);
+            for (var bytes : outputIds) {
+                var packed = bytes.newCodedInput();
+                while (!packed.isAtEnd()) {
+                    outputs.add(packed.readUInt32());
+                }
+            }
+            for (var e : fragmentIds.entrySet()) {
+                if (skipOutputs && outputs.contains(e.getKey())) continue;
+                var relative = buildPath(e.getValue());
+                if (!argumentPaths.contains(relative)) continue;
+                LOG.info("...found bazel dependency " + relative);
+                artifactPaths.add(relative);
+            }
+        }
+        return artifactPaths;
+    }
+
+    private String buildPath(int id) {
+        var cached = builtPaths.get(id);
+        if (cached != null) return cached;
+        var fragment = fragments.get(id);
+        if (fragment == null) {
+            throw new RuntimeException("No path fragment with id " + id);
+        }
+        var path = fragment.parentId != 0 ? buildPath(fragment.parentId) + "/" + fragment.label : fragment.label;
+        builtPaths.put(id, path);
+        return path;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -2,11 +2,19 @@ package org.javacs;
 
 import java.nio.file.Path;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
-/** Cache maps a file + an arbitrary key to a value. When the file is modified, the mapping expires. */
+/**
+ * Cache maps a file + an arbitrary key to a value. When the file is modified, the mapping expires. It's safe to use
+ * from multiple threads.
+ *
+ * <p>Entries are removed as soon as FileStore reports that their file changed, and a mapping that was loaded before
+ * the file's last modified time is never returned, in case the change came from somewhere FileStore doesn't see. Each
+ * cache holds at most `maxEntries` entries, and all caches together stay under a global budget of estimated bytes,
+ * evicting the least recently used entries first.
+ */
 class Cache<K, V> {
     private static class Key<K> {
         final Path file;
@@ -32,43 +40,294 @@ class Cache<K, V> {
 
     private class Value {
         final V value;
-        final Instant created = Instant.now();
+        /** When the value started being computed, so changes to the file during the computation make it out-of-date */
+        final Instant created;
+        final long weight;
 
-        Value(V value) {
+        Value(V value, Instant created, long weight) {
             this.value = value;
+            this.created = created;
+            this.weight = weight;
         }
     }
 
-    private final Map<Key, Value> map = new HashMap<>();
+    static class Stats {
+        final String name;
+        final int entries;
+        final long weight, hits, misses, evictions, invalidations;
 
-    boolean has(Path file, K k) {
+        Stats(String name, int entries, long weight, long hits, long misses, long evictions, long invalidations) {
+            this.name = name;
+            this.entries = entries;
+            this.weight = weight;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+
+        double hitRate() {
+            var total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: %d entries, %d KB, %.0f%% hits (%d/%d), %d evicted, %d invalidated",
+                    name,
+                    entries,
+                    weight / 1024,
+                    hitRate() * 100,
+                    hits,
+                    hits + misses,
+                    evictions,
+                    invalidations);
+        }
+    }
+
+    static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    /** The estimated bytes that all caches together may use */
+    private static volatile long budget = DEFAULT_BUDGET;
+    /** The estimated bytes that all caches together are using */
+    private static final AtomicLong totalWeight = new AtomicLong();
+    /** Every cache, so they can all be invalidated when a file changes. Caches live forever, so keep them static. */
+    private static final List<Cache<?, ?>> all = new ArrayList<>();
+
+    private final String name;
+    private final int maxEntries;
+    /** All entries, least recently used first */
+    private final LinkedHashMap<Key<K>, Value> map = new LinkedHashMap<>(16, 0.75f, true);
+    /** The keys of `map` for each file, so a file's entries can be removed when it changes */
+    private final Map<Path, Set<Key<K>>> byFile = new HashMap<>();
+    /** The number of get(...) calls computing a value for each file */
+    private final Map<Path, Integer> computing = new HashMap<>();
+    /**
+     * The number of times each file has been invalidated while a value for it was being computed, so a value computed
+     * across an invalidation isn't loaded. A file's entry is dropped when nothing is computing a value for it.
+     */
+    private final Map<Path, Integer> generation = new HashMap<>();
+    private long weight, hits, misses, evictions, invalidations;
+
+    Cache(String name) {
+        this(name, DEFAULT_MAX_ENTRIES);
+    }
+
+    Cache(String name, int maxEntries) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        synchronized (all) {
+            all.add(this);
+        }
+    }
+
+    synchronized boolean has(Path file, K k) {
         return !needs(file, k);
     }
 
-    boolean needs(Path file, K k) {
+    synchronized boolean needs(Path file, K k) {
         // If key is not in map, it needs to be loaded
         var key = new Key<K>(file, k);
-        if (!map.containsKey(key)) return true;
+        var value = map.get(key);
+        if (value == null) {
+            misses++;
+            return true;
+        }
 
         // If key was loaded before file was last modified, it needs to be reloaded
-        var value = map.get(key);
         var modified = FileStore.modified(file);
-        // TODO remove all keys associated with file when file changes
-        return value.created.isBefore(modified);
+        if (value.created.isBefore(modified)) {
+            remove(key);
+            invalidations++;
+            misses++;
+            return true;
+        }
+        hits++;
+        return false;
     }
 
     void load(Path file, K k, V v) {
-        // TODO limit total size of cache
-        var key = new Key<K>(file, k);
-        var value = new Value(v);
-        map.put(key, value);
+        load(file, k, v, Instant.now(), -1);
     }
 
-    V get(Path file, K k) {
+    /** Load `v` as the value of `k` computed at `created`, unless `file` has been invalidated since `generation` */
+    private void load(Path file, K k, V v, Instant created, int generation) {
+        synchronized (this) {
+            if (generation != -1 && generation != this.generation.getOrDefault(file, 0)) return;
+            var key = new Key<K>(file, k);
+            remove(key);
+            var value = new Value(v, created, estimateSize(k) + estimateSize(v) + ENTRY_OVERHEAD);
+            map.put(key, value);
+            byFile.computeIfAbsent(file, f -> new HashSet<>()).add(key);
+            weight += value.weight;
+            totalWeight.addAndGet(value.weight);
+            while (map.size() > maxEntries) {
+                evictOldest();
+            }
+        }
+        // Shrink after releasing our lock, so two caches never wait for each other
+        if (totalWeight.get() > budget) {
+            shrink();
+        }
+    }
+
+    synchronized V get(Path file, K k) {
         var key = new Key<K>(file, k);
         if (!map.containsKey(key)) {
-            throw new IllegalArgumentException(k + " is not in map " + map);
+            throw new IllegalArgumentException(k + " is not in cache " + name);
         }
         return map.get(key).value;
     }
+
+    /**
+     * The value for `file` and `k`, computing it with `compute` if it's missing or out-of-date. `compute` runs without
+     * holding the lock, so two threads may both compute the same value. If `file` is invalidated while `compute` is
+     * running, the value is returned but not loaded, because it may have been computed from the old contents.
+     */
+    V get(Path file, K k, Supplier<V> compute) {
+        Instant started;
+        int generation;
+        synchronized (this) {
+            if (!needs(file, k)) {
+                return get(file, k);
+            }
+            started = Instant.now();
+            generation = this.generation.getOrDefault(file, 0);
+            computing.merge(file, 1, Integer::sum);
+        }
+        try {
+            var v = compute.get();
+            load(file, k, v, started, generation);
+            return v;
+        } finally {
+            doneComputing(file);
+        }
+    }
+
+    private synchronized void doneComputing(Path file) {
+        if (computing.merge(file, -1, Integer::sum) == 0) {
+            computing.remove(file);
+            generation.remove(file);
+        }
+    }
+
+    /** Remove every entry for `file` */
+    synchronized void invalidate(Path file) {
+        // Only a value that's being computed can be affected by an invalidation that has already happened
+        if (computing.containsKey(file)) {
+            generation.merge(file, 1, Integer::sum);
+        }
+        var keys = byFile.get(file);
+        if (keys == null) return;
+        for (var key : new ArrayList<>(keys)) {
+            remove(key);
+            invalidations++;
+        }
+    }
+
+    synchronized void clear() {
+        for (var key : new ArrayList<>(map.keySet())) {
+            remove(key);
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(name, map.size(), weight, hits, misses, evictions, invalidations);
+    }
+
+    private void remove(Key<K> key) {
+        var value = map.remove(key);
+        if (value == null) return;
+        weight -= value.weight;
+        totalWeight.addAndGet(-value.weight);
+        var keys = byFile.get(key.file);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            byFile.remove(key.file);
+        }
+    }
+
+    /** Evict the least recently used entry, unless it's the only one. Returns false if nothing was evicted. */
+    private synchronized boolean evictOldest() {
+        if (map.size() <= 1) return false;
+        remove(map.keySet().iterator().next());
+        evictions++;
+        return true;
+    }
+
+    /** Evict entries from the heaviest caches until all caches together are under budget */
+    private static void shrink() {
+        var caches = caches();
+        while (totalWeight.get() > budget) {
+            caches.sort(Comparator.comparingLong((Cache<?, ?> c) -> c.weight()).reversed());
+            var evicted = false;
+            for (var cache : caches) {
+                if (cache.evictOldest()) {
+                    evicted = true;
+                    break;
+                }
+            }
+            if (!evicted) return;
+        }
+    }
+
+    private synchronized long weight() {
+        return weight;
+    }
+
+    /** Remove the entries for `file` from every cache. Called by FileStore when `file` changes. */
+    static void invalidateAll(Path file) {
+        for (var cache : caches()) {
+            cache.invalidate(file);
+        }
+    }
+
+    /** Remove every entry from every cache, as if the server had just started */
+    static void clearAll() {
+        for (var cache : caches()) {
+            cache.clear();
+        }
+    }
+
+    /** Set the estimated bytes that all caches together may use */
+    static void setBudget(long bytes) {
+        budget = bytes;
+    }
+
+    static long totalWeight() {
+        return totalWeight.get();
+    }
+
+    static List<Stats> allStats() {
+        var stats = new ArrayList<Stats>();
+        for (var cache : caches()) {
+            stats.add(cache.stats());
+        }
+        return stats;
+    }
+
+    private static List<Cache<?, ?>> caches() {
+        synchronized (all) {
+            return new ArrayList<>(all);
+        }
+    }
+
+    /** The approximate memory used by the map entry, the key object and the timestamp */
+    private static final long ENTRY_OVERHEAD = 96;
+
+    /** A rough estimate of the bytes used by `o`, for the kinds of keys and values caches hold */
+    static long estimateSize(Object o) {
+        if (o == null || o instanceof Boolean) return 0;
+        if (o instanceof String) return 40 + 2L * ((String) o).length();
+        if (o instanceof Collection) {
+            long size = 40;
+            for (var item : (Collection<?>) o) {
+                size += 8 + estimateSize(item);
+            }
+            return size;
+        }
+        return 32;
+    }
 }
@@ -0,0 +1,99 @@
+package org.javacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/** CacheDir locates the directories where indexes are persisted between restarts of the language server. */
+public class CacheDir {
+
+    /** The root of all on-disk caches, usually ~/.cache/java-language-server */
+    public static Path root() {
+        var xdg = System.getenv("XDG_CACHE_HOME");
+        var base =
+                xdg != null && !xdg.isBlank() ? Paths.get(xdg) : Paths.get(System.getProperty("user.home"), ".cache");
+        return base.resolve("java-language-server");
+    }
+
+    /**
+     * The cache directory for one set of workspace roots. Each workspace gets its own directory, named after the last
+     * component of the first root plus a hash of all the roots, so two checkouts of the same project don't collide.
+     */
+    public static Path workspace(Collection<Path> workspaceRoots) {
+        var sorted = new TreeSet<String>();
+        for (var root : workspaceRoots) {
+            sorted.add(root.toAbsolutePath().normalize().toString());
+        }
+        var first = sorted.isEmpty() ? null : Paths.get(sorted.first()).getFileName();
+        var name = first == null ? "default" : first.toString();
+        return root().resolve("workspaces").resolve(name + "-" + hash(String.join("\n", sorted)));
+    }
+
+    /** A short, stable, filesystem-safe digest of `text` */
+    static String hash(String text) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            var hex = new StringBuilder();
+            for (var i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Writes the contents of a cache file, after the header */
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Write `cacheFile`, starting with a header of `magic`, which identifies the format, and `version`. Each format
+     * has its own magic, four ASCII letters like "JSYM" for the symbol index, so one kind of cache is never read as
+     * another. The file is written to a temporary file next to it and then moved into place, so a reader never sees
+     * half a file, even if two servers save the same cache at once.
+     */
+    public static void write(Path cacheFile, int magic, int version, Writer writer) throws IOException {
+        Files.createDirectories(cacheFile.getParent());
+        var tmp = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(magic);
+                out.writeInt(version);
+                writer.write(out);
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Open `cacheFile` for reading, just after its header. Throws IOException if it wasn't written by write(...) with
+     * the same `magic` and `version`.
+     */
+    public static DataInputStream read(Path cacheFile, int magic, int version) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)));
+        try {
+            if (in.readInt() != magic || in.readInt() != version) {
+                throw new IOException(cacheFile + " was written in a different format or by a different version");
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
@@ -69,6 +69,7 @@ class ClassHeader {
     private static final int CONSTANT_Utf8 = 1;
     private static final int CONSTANT_MethodHandle = 15;
     private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
     private static final int CONSTANT_InvokeDynamic = 18;
     private static final int CONSTANT_Module = 19;
     private static final int CONSTANT_Package = 20;
@@ -89,6 +90,7 @@ class ClassHeader {
             case CONSTANT_Integer:
             case CONSTANT_Float:
             case CONSTANT_NameAndType:
+            case CONSTANT_Dynamic:
             case CONSTANT_InvokeDynamic:
                 {
                     var info = in.readNBytes(4);
@@ -2,22 +2,55 @@ package org.javacs;
 
 import com.sun.source.tree.*;
 import com.sun.source.util.*;
+import com.sun.tools.javac.api.JavacTaskImpl;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.*;
 import javax.tools.*;
 
 class CompileBatch implements AutoCloseable {
     static final int MAX_COMPLETION_ITEMS = 50;
 
+    /** Keep at most this many diagnostics from each file, the rest are only counted */
+    static final int MAX_DIAGNOSTICS_PER_FILE = 50;
+
+    /**
+     * javac stops reporting after 100 errors and 100 warnings in the whole batch, and it counts them before
+     * MAX_DIAGNOSTICS_PER_FILE is applied, so one broken file would hide the diagnostics of every file after it. Raise
+     * the limit so that only a batch of many broken files runs into it.
+     */
+    static final int MAX_ERRORS_PER_BATCH = 10_000;
+
+    /**
+     * If a file has this many errors after parsing and entering, it's probably in the middle of an edit, like an
+     * unbalanced brace, and analyzing it would mostly produce more errors.
+     */
+    static final int ERROR_STORM = 10;
+
     final JavaCompilerService parent;
+    /** Diagnostics reported while compiling this batch, at most MAX_DIAGNOSTICS_PER_FILE from each file */
+    final List<Diagnostic<? extends JavaFileObject>> diags = new ArrayList<>();
+    /** The number of diagnostics from each file that were left out of `diags` */
+    final Map<URI, Integer> dropped = new HashMap<>();
+    /** Files that weren't analyzed because they had an error storm, see ERROR_STORM */
+    final Set<URI> skipped = new HashSet<>();
+
+    private final Map<URI, Integer> reported = new HashMap<>(), errors = new HashMap<>();
     final ReusableCompiler.Borrow borrow;
-    /** Indicates the task that requested the compilation is finished with it. */
-    boolean closed;
+    /** The number of tasks that are still using this batch. It can only be evicted from the cache when this is 0. */
+    int users;
+    /** The thread that is using this batch, if users > 0 */
+    Thread owner;
 
     final JavacTask task;
     final Trees trees;
@@ -26,26 +59,110 @@ class CompileBatch implements AutoCloseable {
     final List<CompilationUnitTree> roots;
 
     CompileBatch(JavaCompilerService parent, Collection<? extends JavaFileObject> files) {
+        this(parent, files, List.of(), () -> false);
+    }
+
+    /**
+     * Compile `files` together with `dependencies`, which declare classes javac can't find on its own. Dependencies are
+     * compiled like any other file, but they aren't included in `roots`.
+     *
+     * <p>`cancelled` is checked between phases, and before each class is analyzed. Once it's true, the compiler context
+     * is returned while javac is between steps, so it can be reused, and CancellationException is thrown.
+     */
+    CompileBatch(
+            JavaCompilerService parent,
+            Collection<? extends JavaFileObject> files,
+            Collection<? extends JavaFileObject> dependencies,
+            BooleanSupplier cancelled) {
         this.parent = parent;
-        this.borrow = batchTask(parent, files);
+        var all = new ArrayList<JavaFileObject>(files);
+        all.addAll(dependencies);
+        this.borrow = batchTask(parent, this::report, all);
         this.task = borrow.task;
         this.trees = Trees.instance(borrow.task);
         this.elements = borrow.task.getElements();
         this.types = borrow.task.getTypes();
         this.roots = new ArrayList<>();
+        var isDependency = new HashSet<URI>();
+        for (var d : dependencies) {
+            isDependency.add(d.toUri());
+        }
         // Compile all roots
         try {
             for (var t : borrow.task.parse()) {
+                if (isDependency.contains(t.getSourceFile().toUri())) continue;
                 roots.add(t);
             }
+            checkCancelled(cancelled);
+            var impl = (JavacTaskImpl) borrow.task;
+            var entered = impl.enter();
+            var storms = errorStorms();
+            if (!storms.isEmpty()) {
+                LOG.info(String.format("...skip analyzing %d files with %d+ errors", storms.size(), ERROR_STORM));
+                skipped.addAll(storms);
+            }
             // The results of borrow.task.analyze() are unreliable when errors are present
             // You can get at `Element` values using `Trees`
-            borrow.task.analyze();
+            for (var c : classesOutside(entered, storms)) {
+                checkCancelled(cancelled);
+                impl.analyze(List.of(c));
+            }
+            if (storms.isEmpty()) {
+                // Analyze anything else javac has queued up
+                borrow.task.analyze();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (CancellationException e) {
+            borrow.close();
+            throw e;
         }
     }
 
+    private static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
+    }
+
+    private void report(Diagnostic<? extends JavaFileObject> d) {
+        if (d.getSource() == null) {
+            diags.add(d);
+            return;
+        }
+        var uri = d.getSource().toUri();
+        if (d.getKind() == Diagnostic.Kind.ERROR) {
+            errors.merge(uri, 1, Integer::sum);
+        }
+        if (reported.merge(uri, 1, Integer::sum) > MAX_DIAGNOSTICS_PER_FILE) {
+            dropped.merge(uri, 1, Integer::sum);
+            return;
+        }
+        diags.add(d);
+    }
+
+    private Set<URI> errorStorms() {
+        var storms = new HashSet<URI>();
+        for (var root : roots) {
+            var uri = root.getSourceFile().toUri();
+            if (errors.getOrDefault(uri, 0) >= ERROR_STORM) {
+                storms.add(uri);
+            }
+        }
+        return storms;
+    }
+
+    private List<Element> classesOutside(Iterable<? extends Element> entered, Set<URI> files) {
+        var classes = new ArrayList<Element>();
+        for (var el : entered) {
+            if (!(el instanceof TypeElement)) continue;
+            var path = trees.getPath(el);
+            if (path == null || files.contains(path.getCompilationUnit().getSourceFile().toUri())) continue;
+            classes.add(el);
+        }
+        return classes;
+    }
+
     /**
      * If the compilation failed because javac didn't find some package-private files in source files with different
      * names, list those source files.
@@ -53,7 +170,7 @@ class CompileBatch implements AutoCloseable {
     Set<Path> needsAdditionalSources() {
         // Check for "class not found errors" that refer to package private classes
         var addFiles = new HashSet<Path>();
-        for (var err : parent.diags) {
+        for (var err : diags) {
             if (!err.getCode().equals("compiler.err.cant.resolve.location")) continue;
             if (!isValidFileRange(err)) continue;
             var className = errorText(err);
@@ -95,14 +212,15 @@ class CompileBatch implements AutoCloseable {
 
     @Override
     public void close() {
-        closed = true;
+        parent.release(this);
     }
 
     private static ReusableCompiler.Borrow batchTask(
-            JavaCompilerService parent, Collection<? extends JavaFileObject> sources) {
-        parent.diags.clear();
+            JavaCompilerService parent,
+            DiagnosticListener<? super JavaFileObject> diags,
+            Collection<? extends JavaFileObject> sources) {
         var options = options(parent.classPath, parent.addExports);
-        return parent.compiler.getTask(parent.fileManager, parent.diags::add, options, List.of(), sources);
+        return parent.compiler.getTask(diags, options, List.of(), sources);
     }
 
     /** Combine source path or class path entries using the system separator, for example ':' in unix */
@@ -118,6 +236,8 @@ class CompileBatch implements AutoCloseable {
         // Collections.addAll(list, "-verbose");
         Collections.addAll(list, "-proc:none");
         Collections.addAll(list, "-g");
+        Collections.addAll(list, "-Xmaxerrs", Integer.toString(MAX_ERRORS_PER_BATCH));
+        Collections.addAll(list, "-Xmaxwarns", Integer.toString(MAX_ERRORS_PER_BATCH));
         // You would think we could do -Xlint:all,
         // but some lints trigger fatal errors in the presence of parse errors
         Collections.addAll(
@@ -142,4 +262,6 @@ class CompileBatch implements AutoCloseable {
     private boolean isValidFileRange(javax.tools.Diagnostic<? extends JavaFileObject> d) {
         return d.getSource().toUri().getScheme().equals("file") && d.getStartPosition() >= 0 && d.getEndPosition() >= 0;
     }
+
+    private static final Logger LOG = Logger.getLogger("main");
 }
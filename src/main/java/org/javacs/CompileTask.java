@@ -2,8 +2,11 @@ package org.javacs;
 
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.util.JavacTask;
+import java.net.URI;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
 
@@ -11,7 +14,12 @@ public class CompileTask implements AutoCloseable {
     public final JavacTask task;
     public final List<CompilationUnitTree> roots;
     public final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+    /** The number of diagnostics from each file that were left out of `diagnostics`, because there were too many */
+    public final Map<URI, Integer> droppedDiagnostics;
+    /** Files that were parsed but not analyzed, because they had too many errors */
+    public final Set<URI> skipped;
     private final Runnable close;
+    private boolean closed;
 
     public CompilationUnitTree root() {
         if (roots.size() != 1) {
@@ -43,14 +51,29 @@ public class CompileTask implements AutoCloseable {
             List<CompilationUnitTree> roots,
             List<Diagnostic<? extends JavaFileObject>> diagnostics,
             Runnable close) {
+        this(task, roots, diagnostics, Map.of(), Set.of(), close);
+    }
+
+    public CompileTask(
+            JavacTask task,
+            List<CompilationUnitTree> roots,
+            List<Diagnostic<? extends JavaFileObject>> diagnostics,
+            Map<URI, Integer> droppedDiagnostics,
+            Set<URI> skipped,
+            Runnable close) {
         this.task = task;
         this.roots = roots;
         this.diagnostics = diagnostics;
+        this.droppedDiagnostics = droppedDiagnostics;
+        this.skipped = skipped;
         this.close = close;
     }
 
     @Override
     public void close() {
+        // Some callers close the task early, and then again at the end of a try-with-resources block
+        if (closed) return;
+        closed = true;
         close.run();
     }
 }
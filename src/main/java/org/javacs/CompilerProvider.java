@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import javax.tools.JavaFileObject;
+import org.javacs.index.SymbolIndex;
 
 public interface CompilerProvider {
     Set<String> imports();
@@ -15,7 +16,7 @@ public interface CompilerProvider {
 
     List<String> packagePrivateTopLevelTypes(String packageName);
 
-    Iterable<Path> search(String query);
+    SymbolIndex symbolIndex();
 
     Optional<JavaFileObject> findAnywhere(String className);
 
@@ -0,0 +1,296 @@
+package org.javacs;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import javax.lang.model.element.*;
+
+/**
+ * DependencyGraph tracks which source files refer to which other source files, so when the API of a file changes we
+ * can re-check exactly the files that might be broken by it.
+ *
+ * <p>Each file's edges come from two places. The source edges are read from the text of the file: the files named by
+ * its imports, and the files in its own package whose class names appear in it. They're recomputed whenever the file
+ * is modified. The compiler edges are collected from the attributed trees of the last compile that included the file,
+ * and catch references that don't appear by name, like `var x = a.b(); x.c();`.
+ *
+ * <p>Edges are only computed for files we ask about. To find the files that depend on `file`, we look up the files
+ * that contain the names of the classes `file` declares in the word index, and check their edges.
+ */
+class DependencyGraph {
+    private static class Edges {
+        final Instant modified;
+        final Set<Path> fromSource;
+        Set<Path> fromCompiler = Set.of();
+
+        Edges(Instant modified, Set<Path> fromSource) {
+            this.modified = modified;
+            this.fromSource = fromSource;
+        }
+
+        boolean contains(Path file) {
+            return fromSource.contains(file) || fromCompiler.contains(file);
+        }
+    }
+
+    /** edges[file] are the files that `file` refers to */
+    private final Map<Path, Edges> edges = new HashMap<>();
+    /** compilerDependents[file] are the files whose compiler edges point to `file` */
+    private final Map<Path, Set<Path>> compilerDependents = new HashMap<>();
+    /** signatures[file] is a hash of the text of `file` with its method bodies erased, the last time we checked */
+    private final Map<Path, Integer> signatures = new HashMap<>();
+
+    /**
+     * Check if the declarations in `file` have changed since the last time we called `signatureChanged(file)`. The
+     * first call for each file just remembers its signature, and returns false.
+     */
+    synchronized boolean signatureChanged(Path file) {
+        var signature = signature(file);
+        var previous = signatures.put(file, signature);
+        return previous != null && previous != signature;
+    }
+
+    private static int signature(Path file) {
+        var erased = Parser.eraseMethodBodies(file);
+        // Erasing a body only leaves whitespace, and maybe `throw null;`, so collapse whitespace to ignore body edits
+        var hash = 0;
+        var space = false;
+        for (var i = 0; i < erased.length(); i++) {
+            var c = erased.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                hash = 31 * hash + ' ';
+                space = false;
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * The files that depend on `file`, directly or indirectly, up to `maxDistance` steps away, closest first. At most
+     * `limit` files are returned.
+     */
+    synchronized List<Path> dependents(Path file, int maxDistance, int limit) {
+        var distance = new HashMap<Path, Integer>();
+        distance.put(file, 0);
+        var order = new ArrayList<Path>();
+        var next = new ArrayDeque<Path>();
+        next.add(file);
+        while (!next.isEmpty() && order.size() < limit) {
+            var from = next.remove();
+            var d = distance.get(from);
+            if (d >= maxDistance) continue;
+            for (var to : directDependents(from)) {
+                if (distance.containsKey(to)) continue;
+                distance.put(to, d + 1);
+                order.add(to);
+                next.add(to);
+                if (order.size() == limit) break;
+            }
+        }
+        return order;
+    }
+
+    private SortedSet<Path> directDependents(Path file) {
+        var candidates = new HashSet<Path>();
+        for (var name : declaredNames(file)) {
+            candidates.addAll(FileStore.wordIndex().filesContaining(name));
+        }
+        candidates.addAll(compilerDependents.getOrDefault(file, Set.of()));
+        candidates.remove(file);
+        var found = new TreeSet<Path>();
+        for (var c : candidates) {
+            if (!FileStore.contains(c)) continue;
+            if (edges(c).contains(file)) {
+                found.add(c);
+            }
+        }
+        return found;
+    }
+
+    private static Set<String> declaredNames(Path file) {
+        var names = new HashSet<String>();
+        names.add(stem(file));
+        for (var t : Parser.parseFile(file).root.getTypeDecls()) {
+            if (t instanceof ClassTree) {
+                names.add(((ClassTree) t).getSimpleName().toString());
+            }
+        }
+        return names;
+    }
+
+    /** The files that `file` refers to */
+    synchronized Set<Path> dependencies(Path file) {
+        var e = edges(file);
+        var all = new TreeSet<Path>(e.fromSource);
+        all.addAll(e.fromCompiler);
+        return all;
+    }
+
+    private Edges edges(Path file) {
+        var modified = FileStore.modified(file);
+        var e = edges.get(file);
+        if (e != null && e.modified.equals(modified)) return e;
+        var updated = new Edges(modified, sourceDependencies(file));
+        if (e != null) {
+            // Keep the compiler's edges until the next compile, they're probably still mostly right
+            updated.fromCompiler = e.fromCompiler;
+        }
+        edges.put(file, updated);
+        return updated;
+    }
+
+    private static Set<Path> sourceDependencies(Path file) {
+        var found = new HashSet<Path>();
+        for (var i : JavaCompilerService.readImports(file)) {
+            if (i.endsWith(".*")) {
+                found.addAll(FileStore.list(StringSearch.mostName(i)));
+            } else {
+                // Try `a.b.C`, then `a.b` in case C is a nested class
+                for (var name = i; name.contains("."); name = StringSearch.mostName(name)) {
+                    var declaring = findFile(StringSearch.mostName(name), StringSearch.lastName(name));
+                    if (declaring != null) {
+                        found.add(declaring);
+                        break;
+                    }
+                }
+            }
+        }
+        var words = FileStore.wordIndex();
+        for (var sibling : FileStore.list(FileStore.packageName(file))) {
+            if (words.contains(file, stem(sibling))) {
+                found.add(sibling);
+            }
+        }
+        found.remove(file);
+        return found;
+    }
+
+    private static Path findFile(String packageName, String className) {
+        for (var f : FileStore.list(packageName)) {
+            if (stem(f).equals(className)) return f;
+        }
+        return null;
+    }
+
+    private static String stem(Path file) {
+        var name = file.getFileName().toString();
+        var dot = name.lastIndexOf('.');
+        if (dot == -1) return name;
+        return name.substring(0, dot);
+    }
+
+    /** Replace the compiler edges of each root in `task` with the source files its trees refer to */
+    void update(CompileTask task) {
+        var trees = Trees.instance(task.task);
+        for (var root : task.roots) {
+            var file = Paths.get(root.getSourceFile().toUri());
+            if (!FileStore.contains(file)) continue;
+            var types = new HashSet<TypeElement>();
+            new FindReferencedTypes(trees).scan(root, types);
+            var found = new HashSet<Path>();
+            for (var t : types) {
+                var declaring = declaringFile(trees, t);
+                if (declaring != null && !declaring.equals(file)) {
+                    found.add(declaring);
+                }
+            }
+            setCompilerEdges(file, found);
+        }
+    }
+
+    private static Path declaringFile(Trees trees, TypeElement type) {
+        var qualifiedName = type.getQualifiedName().toString();
+        var found = findFile(StringSearch.mostName(qualifiedName), StringSearch.lastName(qualifiedName));
+        if (found != null) return found;
+        // Package-private classes can be declared in a file with a different name
+        var path = trees.getPath(type);
+        if (path == null) return null;
+        var uri = path.getCompilationUnit().getSourceFile().toUri();
+        if (!uri.getScheme().equals("file")) return null;
+        var file = Paths.get(uri);
+        if (!FileStore.contains(file)) return null;
+        return file;
+    }
+
+    private synchronized void setCompilerEdges(Path file, Set<Path> found) {
+        var e = edges(file);
+        for (var old : e.fromCompiler) {
+            var back = compilerDependents.get(old);
+            if (back == null) continue;
+            back.remove(file);
+            if (back.isEmpty()) compilerDependents.remove(old);
+        }
+        e.fromCompiler = found;
+        for (var to : found) {
+            compilerDependents.computeIfAbsent(to, __ -> new HashSet<>()).add(file);
+        }
+    }
+
+    /** Forget everything about `file`, which has been deleted */
+    synchronized void remove(Path file) {
+        var e = edges.remove(file);
+        if (e != null) {
+            for (var to : e.fromCompiler) {
+                var back = compilerDependents.get(to);
+                if (back != null) back.remove(file);
+            }
+        }
+        signatures.remove(file);
+    }
+
+    /** Collects the top-level classes that declare each identifier in a compilation unit */
+    private static class FindReferencedTypes extends TreePathScanner<Void, Set<TypeElement>> {
+        private final Trees trees;
+
+        FindReferencedTypes(Trees trees) {
+            this.trees = trees;
+        }
+
+        @Override
+        public Void visitIdentifier(IdentifierTree t, Set<TypeElement> types) {
+            add(types);
+            return super.visitIdentifier(t, types);
+        }
+
+        @Override
+        public Void visitMemberSelect(MemberSelectTree t, Set<TypeElement> types) {
+            add(types);
+            return super.visitMemberSelect(t, types);
+        }
+
+        @Override
+        public Void visitMemberReference(MemberReferenceTree t, Set<TypeElement> types) {
+            add(types);
+            return super.visitMemberReference(t, types);
+        }
+
+        @Override
+        public Void visitNewClass(NewClassTree t, Set<TypeElement> types) {
+            add(types);
+            return super.visitNewClass(t, types);
+        }
+
+        private void add(Set<TypeElement> types) {
+            var el = trees.getElement(getCurrentPath());
+            var top = topLevelType(el);
+            if (top != null) types.add(top);
+        }
+
+        private static TypeElement topLevelType(Element el) {
+            TypeElement top = null;
+            for (; el != null && el.getKind() != ElementKind.PACKAGE; el = el.getEnclosingElement()) {
+                if (el instanceof TypeElement) top = (TypeElement) el;
+            }
+            return top;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.javacs;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.*;
+import javax.lang.model.type.TypeKind;
+
+/**
+ * EraseMethodBodies blanks out the inside of every method body, keeping every other character where it was.
+ *
+ * <p>javac still attributes and flow-checks the files it loads from the source path, so a blank body isn't always
+ * enough. A method that returns a value gets `throw null;`, which completes abruptly, so there's no missing return
+ * statement, and final fields that are assigned in a constructor count as definitely assigned. A constructor keeps its
+ * explicit `this(...)` or `super(...)` call, because the implicit `super()` might not exist. If there's no room for
+ * `throw null;` on one line of the body, the body is left as it was.
+ */
+class EraseMethodBodies extends TreeScanner<Void, Void> {
+    private static final String THROW = "throw null;";
+
+    private final SourcePositions pos;
+    private final CompilationUnitTree root;
+    private final StringBuilder buf;
+
+    EraseMethodBodies(JavacTask task, CompilationUnitTree root, CharSequence contents) {
+        this.pos = Trees.instance(task).getSourcePositions();
+        this.root = root;
+        this.buf = new StringBuilder(contents);
+    }
+
+    String erase() {
+        scan(root, null);
+        return buf.toString();
+    }
+
+    @Override
+    public Void visitMethod(MethodTree t, Void __) {
+        var body = t.getBody();
+        if (body == null) return null;
+        var start = (int) pos.getStartPosition(root, body) + 1;
+        var end = (int) pos.getEndPosition(root, body) - 1;
+        var isConstructor = t.getReturnType() == null;
+        if (isConstructor && !body.getStatements().isEmpty() && isConstructorCall(body.getStatements().get(0))) {
+            start = (int) pos.getEndPosition(root, body.getStatements().get(0));
+        }
+        if (start < 0 || end < start) return null;
+        var isVoid = !isConstructor && isVoid(t.getReturnType());
+        var at = isVoid ? start : roomForThrow(start, end);
+        if (at == -1) return null;
+        for (var i = start; i < end; i++) {
+            if (!Character.isWhitespace(buf.charAt(i))) {
+                buf.setCharAt(i, ' ');
+            }
+        }
+        if (!isVoid) {
+            buf.replace(at, at + THROW.length(), THROW);
+        }
+        // Nested classes in the body are gone, so there's nothing more to erase
+        return null;
+    }
+
+    private static boolean isVoid(Tree returnType) {
+        return returnType instanceof PrimitiveTypeTree
+                && ((PrimitiveTypeTree) returnType).getPrimitiveTypeKind() == TypeKind.VOID;
+    }
+
+    private static boolean isConstructorCall(StatementTree s) {
+        if (!(s instanceof ExpressionStatementTree)) return false;
+        var e = ((ExpressionStatementTree) s).getExpression();
+        if (!(e instanceof MethodInvocationTree)) return false;
+        var select = ((MethodInvocationTree) e).getMethodSelect();
+        if (!(select instanceof IdentifierTree)) return false;
+        var name = ((IdentifierTree) select).getName();
+        return name.contentEquals("this") || name.contentEquals("super");
+    }
+
+    /** The first position in [start, end) where `throw null;` fits without covering a line break, or -1 */
+    private int roomForThrow(int start, int end) {
+        var run = 0;
+        for (var i = start; i < end; i++) {
+            var c = buf.charAt(i);
+            run = c == '\n' || c == '\r' ? 0 : run + 1;
+            if (run == THROW.length()) return i + 1 - THROW.length();
+        }
+        return -1;
+    }
+}
@@ -4,10 +4,23 @@ import java.io.*;
 import java.net.URI;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import java.util.logging.Logger;
 import javax.lang.model.element.TypeElement;
+import org.javacs.index.SymbolIndex;
 import org.javacs.lsp.DidChangeTextDocumentParams;
 import org.javacs.lsp.DidCloseTextDocumentParams;
 import org.javacs.lsp.DidOpenTextDocumentParams;
@@ -15,13 +28,31 @@ import org.javacs.lsp.TextDocumentContentChangeEvent;
 
 public class FileStore {
 
-    private static final Set<Path> workspaceRoots = new HashSet<>();
+    // FileStore is modified by the main thread and read by worker threads, so it uses concurrent collections
+    private static final Set<Path> workspaceRoots = ConcurrentHashMap.newKeySet();
 
-    private static final Map<Path, VersionedContent> activeDocuments = new HashMap<>();
+    private static final Map<Path, VersionedContent> activeDocuments = new ConcurrentHashMap<>();
 
     /** javaSources[file] is the javaSources time of a .java source file. */
-    // TODO organize by package name for speed of list(...)
-    private static final TreeMap<Path, Info> javaSources = new TreeMap<>();
+    private static final ConcurrentSkipListMap<Path, Info> javaSources = new ConcurrentSkipListMap<>();
+
+    /** packages[packageName] is the sorted set of files in javaSources that declare packageName. */
+    private static final Map<String, Set<Path>> packages = new ConcurrentHashMap<>();
+
+    /** sourceRoots[dir] is the number of files in javaSources whose package structure starts at dir. */
+    private static final Map<Path, Integer> sourceRoots = new ConcurrentHashMap<>();
+
+    /** Index of the symbols declared in javaSources, loaded from disk the first time it's needed. */
+    private static volatile SymbolIndex symbolIndex = new SymbolIndex();
+
+    /** Index of the words in javaSources, built the first time it's needed. */
+    private static volatile WordIndex wordIndex = new WordIndex();
+
+    /** Imports between the packages of javaSources, loaded from disk the first time it's needed. */
+    private static volatile PackageGraph packageGraph = new PackageGraph();
+
+    /** Index of the classes in javaSources declared in files with different names, built one package at a time. */
+    private static volatile SecondaryClassIndex secondaryClassIndex = new SecondaryClassIndex();
 
     private static class Info {
         final Instant modified;
@@ -34,17 +65,30 @@ public class FileStore {
     }
 
     static void setWorkspaceRoots(Set<Path> newRoots) {
+        setWorkspaceRoots(newRoots, __ -> {});
+    }
+
+    /** Set the workspace roots, crawling any new roots for java sources and calling `progress` with the count so far */
+    static void setWorkspaceRoots(Set<Path> newRoots, IntConsumer progress) {
         newRoots = normalize(newRoots);
         for (var root : workspaceRoots) {
             if (!newRoots.contains(root)) {
                 workspaceRoots.removeIf(f -> f.startsWith(root));
             }
         }
+        var added = new ArrayList<Path>();
         for (var root : newRoots) {
             if (!workspaceRoots.contains(root)) {
-                addFiles(root);
+                added.add(root);
             }
         }
+        addFiles(added, newRoots, progress);
+        if (!workspaceRoots.equals(newRoots)) {
+            symbolIndex = new SymbolIndex();
+            wordIndex = new WordIndex();
+            packageGraph = new PackageGraph();
+            secondaryClassIndex = new SecondaryClassIndex();
+        }
         workspaceRoots.clear();
         workspaceRoots.addAll(newRoots);
     }
@@ -57,30 +101,138 @@ public class FileStore {
         return normalize;
     }
 
-    private static void addFiles(Path root) {
+    /** Crawling is mostly waiting for the disk, so don't use more threads than it can keep busy */
+    private static final int CRAWL_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+
+    /** Report progress this often while crawling */
+    private static final long CRAWL_PROGRESS_MILLIS = 250;
+
+    private static void addFiles(List<Path> roots, Set<Path> allRoots, IntConsumer progress) {
+        if (roots.isEmpty()) return;
+        var started = Instant.now();
+        var snapshotFile = sourceSnapshotFile(allRoots);
+        var crawl = new Crawl(SourceSnapshot.read(snapshotFile));
+        var pool = new ForkJoinPool(CRAWL_THREADS);
         try {
-            Files.walkFileTree(root, new FindJavaSources());
-        } catch (IOException e) {
+            var tasks = new ArrayList<ForkJoinTask<Void>>();
+            for (var root : roots) {
+                tasks.add(pool.submit(new CrawlDirectory(root, crawl)));
+            }
+            for (var task : tasks) {
+                while (true) {
+                    try {
+                        task.get(CRAWL_PROGRESS_MILLIS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        progress.accept(crawl.found.get());
+                    }
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+        var found = crawl.found.get();
+        progress.accept(found);
+        var elapsed = Math.max(1, Duration.between(started, Instant.now()).toMillis());
+        LOG.info(
+                String.format(
+                        "Found %d java files (%d unchanged since the last snapshot) in %s in %d ms (%d files/sec)",
+                        found, crawl.unchanged.get(), roots, elapsed, found * 1000L / elapsed));
+        saveSourceSnapshot(snapshotFile, allRoots, crawl.directories);
+    }
+
+    private static Path sourceSnapshotFile(Set<Path> roots) {
+        return CacheDir.workspace(roots).resolve("sources.bin");
+    }
+
+    private static void saveSourceSnapshot(Path snapshotFile, Set<Path> roots, Map<Path, Instant> directories) {
+        var snapshot = new SourceSnapshot();
+        snapshot.directories.putAll(directories);
+        for (var entry : javaSources.entrySet()) {
+            var file = entry.getKey();
+            if (roots.stream().noneMatch(file::startsWith)) continue;
+            var info = entry.getValue();
+            snapshot.sources.put(file, new SourceSnapshot.Source(info.modified, info.packageName));
+        }
+        snapshot.write(snapshotFile);
+    }
+
+    /** State shared by all the tasks of one crawl */
+    private static class Crawl {
+        /** What we found the last time we crawled this workspace */
+        final SourceSnapshot previous;
+        /** The modified time of every directory we've crawled this time */
+        final Map<Path, Instant> directories = new ConcurrentHashMap<>();
+
+        final AtomicInteger found = new AtomicInteger(), unchanged = new AtomicInteger();
+
+        Crawl(SourceSnapshot previous) {
+            this.previous = previous;
         }
     }
 
-    static class FindJavaSources extends SimpleFileVisitor<Path> {
+    /** Read the package of every java file under `dir`, crawling subdirectories in parallel */
+    private static class CrawlDirectory extends RecursiveAction {
+        private final Path dir;
+        private final Crawl crawl;
+
+        CrawlDirectory(Path dir, Crawl crawl) {
+            this.dir = dir;
+            this.crawl = crawl;
+        }
+
         @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-            if (attrs.isSymbolicLink()) {
-                LOG.warning("Don't check " + dir + " for java sources");
-                return FileVisitResult.SKIP_SUBTREE;
+        protected void compute() {
+            var subdirs = new ArrayList<CrawlDirectory>();
+            try {
+                var modified = Files.getLastModifiedTime(dir).toInstant();
+                crawl.directories.put(dir, modified);
+                if (modified.equals(crawl.previous.directories.get(dir))) {
+                    // Nothing has been added to or removed from dir since the snapshot, so reuse its listing
+                    for (var child : crawl.previous.children(dir)) {
+                        if (crawl.previous.directories.containsKey(child)) {
+                            subdirs.add(new CrawlDirectory(child, crawl));
+                        } else if (Files.exists(child)) {
+                            addSource(child, Files.getLastModifiedTime(child).toInstant());
+                        }
+                    }
+                } else {
+                    list(subdirs);
+                }
+            } catch (IOException e) {
+                LOG.warning("Couldn't check " + dir + " for java sources: " + e.getMessage());
             }
-            return FileVisitResult.CONTINUE;
+            invokeAll(subdirs);
         }
 
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes _attrs) {
-            if (isJavaFile(file)) {
+        private void list(List<CrawlDirectory> subdirs) throws IOException {
+            try (var entries = Files.newDirectoryStream(dir)) {
+                for (var entry : entries) {
+                    var attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        subdirs.add(new CrawlDirectory(entry, crawl));
+                    } else if (attrs.isSymbolicLink() && Files.isDirectory(entry)) {
+                        LOG.warning("Don't check " + entry + " for java sources");
+                    } else if (isJavaFile(entry)) {
+                        var modified = attrs.lastModifiedTime();
+                        if (attrs.isSymbolicLink()) modified = Files.getLastModifiedTime(entry);
+                        addSource(entry, modified.toInstant());
+                    }
+                }
+            }
+        }
+
+        private void addSource(Path file, Instant modified) {
+            var known = crawl.previous.sources.get(file);
+            if (known != null && known.modified.equals(modified)) {
+                putInfo(file, new Info(modified, known.packageName));
+                crawl.unchanged.incrementAndGet();
+            } else {
                 readInfoFromDisk(file);
             }
-            return FileVisitResult.CONTINUE;
+            crawl.found.incrementAndGet();
         }
     }
 
@@ -89,29 +241,41 @@ public class FileStore {
     }
 
     static List<Path> list(String packageName) {
-        var list = new ArrayList<Path>();
-        for (var file : javaSources.keySet()) {
-            if (javaSources.get(file).packageName.equals(packageName)) {
-                list.add(file);
-            }
-        }
-        return list;
+        var files = packages.get(packageName);
+        if (files == null) return List.of();
+        return new ArrayList<>(files);
     }
 
     public static Set<Path> sourceRoots() {
-        var roots = new HashSet<Path>();
-        for (var file : javaSources.keySet()) {
-            var root = sourceRoot(file);
-            if (root != null) {
-                roots.add(root);
-            }
+        return new HashSet<>(sourceRoots.keySet());
+    }
+
+    /** Add or replace `file` in javaSources, keeping packages and sourceRoots up-to-date. */
+    private static synchronized void putInfo(Path file, Info info) {
+        var old = javaSources.put(file, info);
+        if (old != null) unindex(file, old);
+        packages.computeIfAbsent(info.packageName, __ -> new ConcurrentSkipListSet<>()).add(file);
+        var root = sourceRoot(file, info.packageName);
+        if (root != null) sourceRoots.merge(root, 1, Integer::sum);
+    }
+
+    private static synchronized void removeInfo(Path file) {
+        var old = javaSources.remove(file);
+        if (old != null) unindex(file, old);
+    }
+
+    private static void unindex(Path file, Info info) {
+        var files = packages.get(info.packageName);
+        if (files != null) {
+            files.remove(file);
+            if (files.isEmpty()) packages.remove(info.packageName);
         }
-        return roots;
+        var root = sourceRoot(file, info.packageName);
+        if (root != null) sourceRoots.computeIfPresent(root, (__, count) -> count == 1 ? null : count - 1);
     }
 
-    private static Path sourceRoot(Path file) {
-        var info = javaSources.get(file);
-        var parts = info.packageName.split("\\.");
+    private static Path sourceRoot(Path file, String packageName) {
+        var parts = packageName.split("\\.");
         var dir = file.getParent();
         for (var i = parts.length - 1; i >= 0; i--) {
             var end = parts[i];
@@ -130,24 +294,35 @@ public class FileStore {
 
     static Instant modified(Path file) {
         // If file is open, use last in-memory modification time
-        if (activeDocuments.containsKey(file)) {
-            return activeDocuments.get(file).modified;
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            return active.modified;
         }
         // If we've never checked before, look up modified time on disk
-        if (!javaSources.containsKey(file)) {
+        var info = javaSources.get(file);
+        if (info == null) {
             readInfoFromDisk(file);
+            info = javaSources.get(file);
         }
         // Look up modified time from cache
-        return javaSources.get(file).modified;
+        return info.modified;
+    }
+
+    /** The LSP version of `file` if it's open, or -1 */
+    static int version(Path file) {
+        var active = activeDocuments.get(file);
+        return active == null ? -1 : active.version;
     }
 
     static String packageName(Path file) {
         // If we've never checked before, look up package name on disk
-        if (!javaSources.containsKey(file)) {
+        var info = javaSources.get(file);
+        if (info == null) {
             readInfoFromDisk(file);
+            info = javaSources.get(file);
         }
         // Look up package name from cache
-        return javaSources.get(file).packageName;
+        return info.packageName;
     }
 
     public static String suggestedPackageName(Path file) {
@@ -179,6 +354,48 @@ public class FileStore {
         return list;
     }
 
+    static SymbolIndex symbolIndex() {
+        if (!symbolIndex.isLoaded()) {
+            symbolIndex.load(symbolIndexFile(), all(), f -> modified(f).toEpochMilli());
+        }
+        return symbolIndex;
+    }
+
+    static WordIndex wordIndex() {
+        return wordIndex;
+    }
+
+    static SecondaryClassIndex secondaryClassIndex() {
+        return secondaryClassIndex;
+    }
+
+    static PackageGraph packageGraph() {
+        if (!packageGraph.isLoaded()) {
+            packageGraph.load(packageGraphFile(), all());
+        }
+        return packageGraph;
+    }
+
+    static void savePackageGraph() {
+        if (packageGraph.isLoaded()) {
+            packageGraph.save(packageGraphFile());
+        }
+    }
+
+    private static Path packageGraphFile() {
+        return CacheDir.workspace(workspaceRoots).resolve("packages.bin");
+    }
+
+    static void saveSymbolIndex() {
+        if (symbolIndex.isLoaded()) {
+            symbolIndex.save(symbolIndexFile());
+        }
+    }
+
+    private static Path symbolIndexFile() {
+        return CacheDir.workspace(workspaceRoots).resolve("symbols.bin");
+    }
+
     static void externalCreate(Path file) {
         readInfoFromDisk(file);
     }
@@ -188,17 +405,20 @@ public class FileStore {
     }
 
     static void externalDelete(Path file) {
-        javaSources.remove(file);
+        removeInfo(file);
+        forget(file);
     }
 
     private static void readInfoFromDisk(Path file) {
         try {
             var time = Files.getLastModifiedTime(file).toInstant();
             var packageName = StringSearch.packageName(file);
-            javaSources.put(file, new Info(time, packageName));
+            putInfo(file, new Info(time, packageName));
+            invalidate(file);
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
-            javaSources.remove(file);
+            removeInfo(file);
+            forget(file);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -209,6 +429,7 @@ public class FileStore {
         var document = params.textDocument;
         var file = Paths.get(document.uri);
         activeDocuments.put(file, new VersionedContent(document.text, document.version));
+        invalidateContents(file);
     }
 
     static void change(DidChangeTextDocumentParams params) {
@@ -222,16 +443,40 @@ public class FileStore {
         }
         var newText = existing.content;
         for (var change : params.contentChanges) {
-            if (change.range == null) newText = change.text;
+            if (change.range == null) newText = Rope.of(change.text);
             else newText = patch(newText, change);
         }
         activeDocuments.put(file, new VersionedContent(newText, document.version));
+        invalidateContents(file);
     }
 
     static void close(DidCloseTextDocumentParams params) {
         if (!isJavaFile(params.textDocument.uri)) return;
         var file = Paths.get(params.textDocument.uri);
         activeDocuments.remove(file);
+        invalidateContents(file);
+    }
+
+    /** The in-memory contents of `file` have changed, so anything we derived from its text is out-of-date. */
+    private static void invalidateContents(Path file) {
+        if (javaSources.containsKey(file)) {
+            invalidate(file);
+        }
+    }
+
+    private static void invalidate(Path file) {
+        symbolIndex.invalidate(file);
+        wordIndex.invalidate(file);
+        packageGraph.invalidate(file);
+        Cache.invalidateAll(file);
+    }
+
+    private static void forget(Path file) {
+        symbolIndex.remove(file);
+        wordIndex.remove(file);
+        packageGraph.remove(file);
+        secondaryClassIndex.remove(file);
+        Cache.invalidateAll(file);
     }
 
     static Set<Path> activeDocuments() {
@@ -242,8 +487,9 @@ public class FileStore {
         if (!isJavaFile(file)) {
             throw new RuntimeException(file + " is not a java file");
         }
-        if (activeDocuments.containsKey(file)) {
-            return activeDocuments.get(file).content;
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            return active.content.toString();
         }
         try {
             return Files.readString(file);
@@ -256,10 +502,9 @@ public class FileStore {
     }
 
     static InputStream inputStream(Path file) {
-        var uri = file.toUri();
-        if (activeDocuments.containsKey(uri)) {
-            var string = activeDocuments.get(uri).content;
-            var bytes = string.getBytes();
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            var bytes = active.content.toString().getBytes();
             return new ByteArrayInputStream(bytes);
         }
         try {
@@ -274,10 +519,9 @@ public class FileStore {
     }
 
     static BufferedReader bufferedReader(Path file) {
-        var uri = file.toUri();
-        if (activeDocuments.containsKey(uri)) {
-            var string = activeDocuments.get(uri).content;
-            return new BufferedReader(new StringReader(string));
+        var active = activeDocuments.get(file);
+        if (active != null) {
+            return new BufferedReader(new StringReader(active.content.toString()));
         }
         try {
             return Files.newBufferedReader(file);
@@ -293,65 +537,11 @@ public class FileStore {
         return bufferedReader(file);
     }
 
-    /** Convert from line/column (1-based) to offset (0-based) */
-    static int offset(String contents, int line, int column) {
-        line--;
-        column--;
-        int cursor = 0;
-        while (line > 0) {
-            if (contents.charAt(cursor) == '\n') {
-                line--;
-            }
-            cursor++;
-        }
-        return cursor + column;
-    }
-
-    private static String patch(String sourceText, TextDocumentContentChangeEvent change) {
-        try {
-            var range = change.range;
-            var reader = new BufferedReader(new StringReader(sourceText));
-            var writer = new StringWriter();
-
-            // Skip unchanged lines
-            int line = 0;
-
-            while (line < range.start.line) {
-                writer.write(reader.readLine() + '\n');
-                line++;
-            }
-
-            // Skip unchanged chars
-            for (int character = 0; character < range.start.character; character++) {
-                writer.write(reader.read());
-            }
-
-            // Write replacement text
-            writer.write(change.text);
-
-            // Skip replaced text
-            if (change.range.start.line == change.range.end.line) {
-                int chars = change.range.end.character - change.range.start.character;
-                reader.skip(chars);
-            } else {
-                int lines = change.range.end.line - change.range.start.line;
-                int chars = change.range.end.character;
-                for (int lineSkip = 0; lineSkip < lines; lineSkip++) {
-                    reader.readLine();                    
-                }
-                reader.skip(chars);
-            }
-
-            // Write remaining text
-            while (true) {
-                int next = reader.read();
-
-                if (next == -1) return writer.toString();
-                else writer.write(next);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    private static Rope patch(Rope sourceText, TextDocumentContentChangeEvent change) {
+        var range = change.range;
+        var start = sourceText.offset(range.start.line, range.start.character);
+        var end = sourceText.offset(range.end.line, range.end.character);
+        return sourceText.replace(start, end, change.text);
     }
 
     static boolean isJavaFile(Path file) {
@@ -392,12 +582,15 @@ public class FileStore {
 }
 
 class VersionedContent {
-    final String content;
+    final Rope content;
     final int version;
     final Instant modified = Instant.now();
 
     VersionedContent(String content, int version) {
-        Objects.requireNonNull(content, "content is null");
+        this(Rope.of(Objects.requireNonNull(content, "content is null")), version);
+    }
+
+    VersionedContent(Rope content, int version) {
         this.content = content;
         this.version = version;
     }
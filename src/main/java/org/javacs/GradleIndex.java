@@ -0,0 +1,226 @@
+package org.javacs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * GradleIndex maps group:artifact:version to the jar and sources jar in the gradle cache, which is laid out as
+ * caches/modules-2/files-2.1/groupId/artifactId/version/hash/file. The cache is walked once, and the index is saved
+ * on disk along with the modified time of each group directory. When the index is loaded again, only groups whose
+ * directory has changed are walked again.
+ */
+class GradleIndex {
+    private final Path gradleHome;
+    /** The modified time of each groupId directory, when it was last scanned */
+    private final Map<Path, Long> groups = new HashMap<>();
+    /** The files found in each groupId directory, by key */
+    private final Map<Path, Map<String, Path>> contents = new HashMap<>();
+    /** "groupId:artifactId:version" or "groupId:artifactId:version:sources" to the file, from all groups */
+    private final Map<String, Path> files = new HashMap<>();
+
+    private GradleIndex(Path gradleHome) {
+        this.gradleHome = gradleHome;
+    }
+
+    /** Load the index of `gradleHome` from disk, and rescan any group that has changed since it was saved */
+    static GradleIndex of(Path gradleHome) {
+        var index = new GradleIndex(gradleHome);
+        var cacheFile = index.cacheFile();
+        if (Files.exists(cacheFile)) {
+            try {
+                index.read(cacheFile);
+            } catch (IOException e) {
+                LOG.warning("Failed to read " + cacheFile + ": " + e.getMessage());
+                index.groups.clear();
+                index.contents.clear();
+                index.files.clear();
+            }
+        }
+        if (index.refresh()) {
+            index.write(cacheFile);
+        }
+        return index;
+    }
+
+    /** The jar, or sources jar, of `artifact`, or InferConfig.NOT_FOUND */
+    Path find(Artifact artifact, boolean source) {
+        var key = key(artifact.groupId, artifact.artifactId, artifact.version, source);
+        var file = files.get(key);
+        if (file != null && Files.exists(file)) {
+            return file;
+        }
+        // Gradle adds new versions without touching the group directory, so look again before giving up
+        var changed = false;
+        for (var group : groupDirs(artifact.groupId)) {
+            changed |= scan(group);
+        }
+        if (changed) {
+            write(cacheFile());
+        }
+        return files.getOrDefault(key, InferConfig.NOT_FOUND);
+    }
+
+    private Path cacheFile() {
+        var key = gradleHome.toAbsolutePath().normalize().toString();
+        return CacheDir.root().resolve("gradle").resolve(CacheDir.hash(key) + ".bin");
+    }
+
+    private static String key(String groupId, String artifactId, String version, boolean source) {
+        return groupId + ":" + artifactId + ":" + version + (source ? ":sources" : "");
+    }
+
+    /** The files-* directories inside each caches/modules-* directory */
+    private List<Path> filesDirs() {
+        var result = new ArrayList<Path>();
+        for (var modules : list(gradleHome.resolve("caches"))) {
+            if (!modules.getFileName().toString().startsWith("modules-")) continue;
+            for (var dir : list(modules)) {
+                if (dir.getFileName().toString().startsWith("files-")) {
+                    result.add(dir);
+                }
+            }
+        }
+        return result;
+    }
+
+    private List<Path> groupDirs(String groupId) {
+        var result = new ArrayList<Path>();
+        for (var dir : filesDirs()) {
+            var group = dir.resolve(groupId);
+            if (Files.isDirectory(group)) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    /** Rescan every group directory that is new or has a different modified time. Returns true if anything changed. */
+    private boolean refresh() {
+        var found = new HashSet<Path>();
+        var changed = false;
+        for (var dir : filesDirs()) {
+            for (var group : list(dir)) {
+                found.add(group);
+                var recorded = groups.get(group);
+                if (recorded == null || recorded != modified(group)) {
+                    changed |= scan(group);
+                }
+            }
+        }
+        // Forget groups that have been deleted
+        for (var group : new ArrayList<>(groups.keySet())) {
+            if (!found.contains(group)) {
+                remove(group);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /** Replace the entries of `group` with its current contents. Returns true if anything changed. */
+    private boolean scan(Path group) {
+        var found = new HashMap<String, Path>();
+        var groupId = group.getFileName().toString();
+        for (var artifact : list(group)) {
+            var artifactId = artifact.getFileName().toString();
+            for (var version : list(artifact)) {
+                var v = version.getFileName().toString();
+                var jar = artifactId + "-" + v + ".jar";
+                var sources = artifactId + "-" + v + "-sources.jar";
+                for (var hash : list(version)) {
+                    for (var file : list(hash)) {
+                        var name = file.getFileName().toString();
+                        if (name.equals(jar)) {
+                            found.putIfAbsent(key(groupId, artifactId, v, false), file);
+                        } else if (name.equals(sources)) {
+                            found.putIfAbsent(key(groupId, artifactId, v, true), file);
+                        }
+                    }
+                }
+            }
+        }
+        var previous = contents.getOrDefault(group, Map.of());
+        remove(group);
+        groups.put(group, modified(group));
+        contents.put(group, found);
+        files.putAll(found);
+        return !previous.equals(found);
+    }
+
+    private void remove(Path group) {
+        groups.remove(group);
+        var previous = contents.remove(group);
+        if (previous == null) return;
+        for (var e : previous.entrySet()) {
+            files.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private static long modified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static List<Path> list(Path dir) {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (var stream = Files.list(dir)) {
+            var result = new ArrayList<Path>();
+            stream.forEach(result::add);
+            return result;
+        } catch (IOException e) {
+            LOG.warning("Failed to list " + dir + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    private static final int MAGIC = 0x4a475244, VERSION = 1;
+
+    private void write(Path cacheFile) {
+        try {
+            CacheDir.write(
+                    cacheFile,
+                    MAGIC,
+                    VERSION,
+                    out -> {
+                        out.writeInt(groups.size());
+                        for (var e : groups.entrySet()) {
+                            out.writeUTF(e.getKey().toString());
+                            out.writeLong(e.getValue());
+                            var found = contents.getOrDefault(e.getKey(), Map.of());
+                            out.writeInt(found.size());
+                            for (var f : found.entrySet()) {
+                                out.writeUTF(f.getKey());
+                                out.writeUTF(f.getValue().toString());
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    private void read(Path cacheFile) throws IOException {
+        try (var in = CacheDir.read(cacheFile, MAGIC, VERSION)) {
+            var groupCount = in.readInt();
+            for (var i = 0; i < groupCount; i++) {
+                var group = Paths.get(in.readUTF());
+                groups.put(group, in.readLong());
+                var found = new HashMap<String, Path>();
+                var fileCount = in.readInt();
+                for (var j = 0; j < fileCount; j++) {
+                    var key = in.readUTF();
+                    found.put(key, Paths.get(in.readUTF()));
+                }
+                contents.put(group, found);
+                files.putAll(found);
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
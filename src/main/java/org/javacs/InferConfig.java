@@ -1,15 +1,17 @@
 package org.javacs;
 
-import com.google.devtools.build.lib.analysis.AnalysisProtos;
-import com.google.devtools.build.lib.analysis.AnalysisProtosV2;
-import com.google.devtools.build.lib.analysis.AnalysisProtosV2.PathFragment;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -25,12 +27,34 @@ class InferConfig {
     private final Path mavenHome;
     /** Location of the gradle cache, usually ~/.gradle */
     private final Path gradleHome;
-
-    InferConfig(Path workspaceRoot, Collection<String> externalDependencies, Path mavenHome, Path gradleHome) {
+    /** Called when a background refresh finds that the maven dependencies have changed */
+    private final Runnable onRefresh;
+    /** The local maven repository, read from settings.xml the first time it's needed */
+    private Path mavenRepository;
+    /** Index of the gradle cache, loaded the first time a dependency isn't found in the maven repository */
+    private GradleIndex gradleIndex;
+    /** bazelKey of the bazel workspace, computed once because the class path and the doc path both need it */
+    private String bazelKey;
+
+    InferConfig(
+            Path workspaceRoot,
+            Collection<String> externalDependencies,
+            Path mavenHome,
+            Path gradleHome,
+            Runnable onRefresh) {
         this.workspaceRoot = workspaceRoot;
         this.externalDependencies = externalDependencies;
         this.mavenHome = mavenHome;
         this.gradleHome = gradleHome;
+        this.onRefresh = onRefresh;
+    }
+
+    InferConfig(Path workspaceRoot, Collection<String> externalDependencies, Path mavenHome, Path gradleHome) {
+        this(workspaceRoot, externalDependencies, mavenHome, gradleHome, () -> {});
+    }
+
+    InferConfig(Path workspaceRoot, Collection<String> externalDependencies, Runnable onRefresh) {
+        this(workspaceRoot, externalDependencies, defaultMavenHome(), defaultGradleHome(), onRefresh);
     }
 
     InferConfig(Path workspaceRoot, Collection<String> externalDependencies) {
@@ -69,13 +93,13 @@ class InferConfig {
         // Maven
         var pomXml = workspaceRoot.resolve("pom.xml");
         if (Files.exists(pomXml)) {
-            return mvnDependencies(pomXml, "dependency:list");
+            return cachedMvnDependencies(pomXml, "dependency:list");
         }
 
         // Bazel
         var bazelWorkspaceRoot = bazelWorkspaceRoot();
         if (Files.exists(bazelWorkspaceRoot.resolve("WORKSPACE"))) {
-            return bazelClasspath(bazelWorkspaceRoot);
+            return cachedBazel(bazelWorkspaceRoot, "classpath", () -> bazelClasspath(bazelWorkspaceRoot));
         }
 
         return Collections.emptySet();
@@ -110,13 +134,13 @@ class InferConfig {
         // Maven
         var pomXml = workspaceRoot.resolve("pom.xml");
         if (Files.exists(pomXml)) {
-            return mvnDependencies(pomXml, "dependency:sources");
+            return cachedMvnDependencies(pomXml, "dependency:sources");
         }
 
         // Bazel
         var bazelWorkspaceRoot = bazelWorkspaceRoot();
         if (Files.exists(bazelWorkspaceRoot.resolve("WORKSPACE"))) {
-            return bazelSourcepath(bazelWorkspaceRoot);
+            return cachedBazel(bazelWorkspaceRoot, "sourcepath", () -> bazelSourcepath(bazelWorkspaceRoot));
         }
 
         return Collections.emptySet();
@@ -130,10 +154,18 @@ class InferConfig {
         } else return findGradleJar(artifact, source);
     }
 
+    /** The local repository, which is ~/.m2/repository unless settings.xml says otherwise */
+    private Path mavenRepository() {
+        if (mavenRepository == null) {
+            var path = MavenResolver.localRepository(mavenHome.resolve("settings.xml"));
+            mavenRepository = path != null ? Paths.get(path) : mavenHome.resolve("repository");
+        }
+        return mavenRepository;
+    }
+
     Path findMavenJar(Artifact artifact, boolean source) {
         var jar =
-                mavenHome
-                        .resolve("repository")
+                mavenRepository()
                         .resolve(artifact.groupId.replace('.', File.separatorChar))
                         .resolve(artifact.artifactId)
                         .resolve(artifact.version)
@@ -146,34 +178,173 @@ class InferConfig {
     }
 
     private Path findGradleJar(Artifact artifact, boolean source) {
-        // Search for caches/modules-*/files-*/groupId/artifactId/version/*/artifactId-version[-sources].jar
-        var base = gradleHome.resolve("caches");
-        var pattern =
-                "glob:"
-                        + String.join(
-                                File.separator,
-                                base.toString(),
-                                "modules-*",
-                                "files-*",
-                                artifact.groupId,
-                                artifact.artifactId,
-                                artifact.version,
-                                "*",
-                                fileName(artifact, source));
-        var match = FileSystems.getDefault().getPathMatcher(pattern);
+        if (gradleIndex == null) {
+            gradleIndex = GradleIndex.of(gradleHome);
+        }
+        return gradleIndex.find(artifact, source);
+    }
+
+    private String fileName(Artifact artifact, boolean source) {
+        return artifact.artifactId + '-' + artifact.version + (source ? "-sources" : "") + ".jar";
+    }
+
+    /** Cache files that are being refreshed in the background right now */
+    private static final Set<Path> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Resolve `goal` unless the result is already cached for the current poms, trying the local repository before
+     * running maven. If maven is needed and there is a result for an older version of the poms, return that right away
+     * and refresh it in the background, so the server can keep working with the old class path until maven is
+     * finished.
+     */
+    private Set<Path> cachedMvnDependencies(Path pomXml, String goal) {
+        var cacheFile = mavenCacheFile(goal);
+        var key = mavenKey(pomXml, goal);
+        var cached = readPathCache(cacheFile);
+        if (isFresh(cached, key)) {
+            var paths = cached.get().paths;
+            LOG.info(String.format("Using %d cached results of %s from %s", paths.size(), goal, cacheFile));
+            return paths;
+        }
+        // Usually everything is already in the local repository, and there's no need to start maven
+        var offline = new MavenResolver(mavenRepository()).resolve(pomXml, goal.equals("dependency:sources"));
+        if (offline.isPresent()) {
+            LOG.info(String.format("Resolved %d results of %s offline", offline.get().size(), goal));
+            writePathCache(cacheFile, key, offline.get());
+            return offline.get();
+        }
+        if (cached.isEmpty()) {
+            var result = runMvn(pomXml, goal);
+            if (result == null) return Set.of();
+            writePathCache(cacheFile, key, result);
+            return result;
+        }
+        var previous = cached.get();
+        if (refreshing.add(cacheFile)) {
+            LOG.info(String.format("Refreshing %s in the background, using the old results until it finishes", goal));
+            var thread = new Thread(() -> refresh(pomXml, goal, cacheFile, key, previous.paths), "maven-refresh");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return previous.paths;
+    }
 
+    private void refresh(Path pomXml, String goal, Path cacheFile, String key, Set<Path> previous) {
         try {
-            return Files.walk(base, 7).filter(match::matches).findFirst().orElse(NOT_FOUND);
+            var result = runMvn(pomXml, goal);
+            if (result == null) return;
+            writePathCache(cacheFile, key, result);
+            if (!result.equals(previous)) {
+                onRefresh.run();
+            }
+        } finally {
+            refreshing.remove(cacheFile);
+        }
+    }
+
+    Path mavenCacheFile(String goal) {
+        return CacheDir.workspace(Set.of(workspaceRoot)).resolve("maven-" + goal.replace(':', '-') + ".txt");
+    }
+
+    /** A hash of everything that affects the result of `goal`: the poms of every module, and the maven settings */
+    String mavenKey(Path pomXml, String goal) {
+        var text = new StringBuilder(goal);
+        for (var pom : modulePoms(pomXml)) {
+            text.append('\n').append(pom).append('\n').append(readOrEmpty(pom));
+        }
+        var settings = mavenHome.resolve("settings.xml");
+        text.append('\n').append(settings).append('\n').append(readOrEmpty(settings));
+        return CacheDir.hash(text.toString());
+    }
+
+    private static final Pattern MODULE = Pattern.compile("<module>\\s*([^<]+?)\\s*</module>");
+
+    /** `pomXml` and the poms of all its modules, recursively */
+    private static SortedSet<Path> modulePoms(Path pomXml) {
+        var poms = new TreeSet<Path>();
+        var pending = new ArrayDeque<Path>();
+        pending.add(pomXml.toAbsolutePath().normalize());
+        while (!pending.isEmpty()) {
+            var pom = pending.remove();
+            if (!Files.isRegularFile(pom) || !poms.add(pom)) continue;
+            var matcher = MODULE.matcher(readOrEmpty(pom));
+            while (matcher.find()) {
+                var module = pom.getParent().resolve(matcher.group(1)).normalize();
+                pending.add(Files.isDirectory(module) ? module.resolve("pom.xml") : module);
+            }
+        }
+        return poms;
+    }
+
+    private static String readOrEmpty(Path file) {
+        try {
+            return Files.exists(file) ? Files.readString(file) : "";
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            LOG.warning("Failed to read " + file + ": " + e.getMessage());
+            return "";
         }
     }
 
-    private String fileName(Artifact artifact, boolean source) {
-        return artifact.artifactId + '-' + artifact.version + (source ? "-sources" : "") + ".jar";
+    private static class PathCache {
+        final String key;
+        final Set<Path> paths;
+
+        PathCache(String key, Set<Path> paths) {
+            this.key = key;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * A cached result can be used if it was computed from the same inputs and all its files still exist. An empty
+     * result is never used, because it usually means something failed, and every path in it trivially exists.
+     */
+    private static boolean isFresh(Optional<PathCache> cached, String key) {
+        if (cached.isEmpty() || !cached.get().key.equals(key)) return false;
+        var paths = cached.get().paths;
+        return !paths.isEmpty() && paths.stream().allMatch(Files::exists);
+    }
+
+    /** Read a cache file written by writePathCache: the key on the first line, then one path per line */
+    private static Optional<PathCache> readPathCache(Path cacheFile) {
+        if (!Files.exists(cacheFile)) return Optional.empty();
+        try {
+            var lines = Files.readAllLines(cacheFile);
+            if (lines.isEmpty()) return Optional.empty();
+            var paths = new HashSet<Path>();
+            for (var line : lines.subList(1, lines.size())) {
+                paths.add(Paths.get(line));
+            }
+            return Optional.of(new PathCache(lines.get(0), paths));
+        } catch (IOException e) {
+            LOG.warning("Failed to read " + cacheFile + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    static void writePathCache(Path cacheFile, String key, Set<Path> paths) {
+        var lines = new ArrayList<String>();
+        lines.add(key);
+        for (var path : paths) {
+            lines.add(path.toString());
+        }
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            var tmp = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+            Files.write(tmp, lines);
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + cacheFile + ": " + e.getMessage());
+        }
     }
 
     static Set<Path> mvnDependencies(Path pomXml, String goal) {
+        var result = runMvn(pomXml, goal);
+        return result == null ? Set.of() : result;
+    }
+
+    /** Run `goal` and return the dependencies it prints, or null if maven fails */
+    private static Set<Path> runMvn(Path pomXml, String goal) {
         Objects.requireNonNull(pomXml, "pom.xml path is null");
         try {
             // TODO consider using mvn valide dependency:copy-dependencies -DoutputDirectory=??? instead
@@ -200,7 +371,7 @@ class InferConfig {
             var result = process.waitFor();
             if (result != 0) {
                 LOG.severe("`" + String.join(" ", command) + "` returned " + result);
-                return Set.of();
+                return null;
             }
             // Read output
             var dependencies = new HashSet<Path>();
@@ -260,6 +431,85 @@ class InferConfig {
         return true;
     }
 
+    /**
+     * Run `infer` unless its result is already cached for the current BUILD and WORKSPACE files, so an unchanged
+     * workspace doesn't need to run bazel at all.
+     */
+    private Set<Path> cachedBazel(Path bazelWorkspaceRoot, String name, Supplier<Set<Path>> infer) {
+        var cacheFile = CacheDir.workspace(Set.of(workspaceRoot)).resolve("bazel-" + name + ".txt");
+        if (bazelKey == null) bazelKey = bazelKey(bazelWorkspaceRoot);
+        var key = bazelKey;
+        var cached = readPathCache(cacheFile);
+        if (isFresh(cached, key)) {
+            var paths = cached.get().paths;
+            LOG.info(String.format("Using %d cached bazel %s entries from %s", paths.size(), name, cacheFile));
+            return paths;
+        }
+        var result = infer.get();
+        // An empty result usually means bazel failed, so try again next time
+        if (!result.isEmpty()) {
+            writePathCache(cacheFile, key, result);
+        }
+        return result;
+    }
+
+    /** A hash of every file that can change what bazel builds: BUILD, WORKSPACE and .bzl files, and the bazel config */
+    String bazelKey(Path bazelWorkspaceRoot) {
+        var files = new TreeSet<Path>();
+        try {
+            Files.walkFileTree(
+                    bazelWorkspaceRoot,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            var name = dir.getFileName();
+                            if (name == null || dir.equals(bazelWorkspaceRoot)) return FileVisitResult.CONTINUE;
+                            // Skip the bazel-* output symlinks and hidden directories like .git
+                            if (name.toString().startsWith("bazel-") || name.toString().startsWith(".")) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (isBazelConfig(file.getFileName().toString())) {
+                                files.add(file);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            LOG.warning("Failed to list bazel files in " + bazelWorkspaceRoot + ": " + e.getMessage());
+        }
+        var text = new StringBuilder();
+        for (var file : files) {
+            text.append(file).append('\n').append(CacheDir.hash(readOrEmpty(file))).append('\n');
+        }
+        return CacheDir.hash(text.toString());
+    }
+
+    private static boolean isBazelConfig(String name) {
+        switch (name) {
+            case "BUILD":
+            case "BUILD.bazel":
+            case "WORKSPACE":
+            case "WORKSPACE.bazel":
+            case "WORKSPACE.bzlmod":
+            case "MODULE.bazel":
+            case ".bazelrc":
+            case ".bazelversion":
+                return true;
+            default:
+                return name.endsWith(".bzl");
+        }
+    }
+
     private Set<Path> bazelClasspath(Path bazelWorkspaceRoot) {
         var absolute = new HashSet<Path>();
 
@@ -372,106 +622,41 @@ class InferConfig {
             "--allow_analysis_failures",
             "mnemonic(" + filterMnemonic + ", " + kindUnion + ")"
         };
-        var output = fork(bazelWorkspaceRoot, command);
-        if (output == NOT_FOUND) {
-            return Set.of();
-        }
-        return readActionGraph(output, filterArgument);
-    }
-
-    private Set<String> readActionGraph(Path output, String filterArgument) {
+        // The action graph can be very large, so read it straight from bazel instead of saving it to a file
         try {
-            var containerV2 = AnalysisProtosV2.ActionGraphContainer.parseFrom(Files.newInputStream(output));
-            if (containerV2.getArtifactsCount() != 0 && containerV2.getArtifactsList().get(0).getId() != 0) {
-                return readActionGraphFromV2(containerV2, filterArgument);
-            }
-            var containerV1 = AnalysisProtos.ActionGraphContainer.parseFrom(Files.newInputStream(output));
-            return readActionGraphFromV1(containerV1, filterArgument);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private Set<String> readActionGraphFromV1(AnalysisProtos.ActionGraphContainer container, String filterArgument) {
-        var argumentPaths = new HashSet<String>();
-        var outputIds = new HashSet<String>();
-        for (var action : container.getActionsList()) {
-            var isFilterArgument = false;
-            for (var argument : action.getArgumentsList()) {
-                if (isFilterArgument && argument.startsWith("-")) {
-                    isFilterArgument = false;
-                    continue;
-                }
-                if (!isFilterArgument) {
-                    isFilterArgument = argument.equals(filterArgument);
-                    continue;
-                }
-                argumentPaths.add(argument);
-            }
-            outputIds.addAll(action.getOutputIdsList());
-        }
-        var artifactPaths = new HashSet<String>();
-        for (var artifact : container.getArtifactsList()) {
-            if (!argumentPaths.contains(artifact.getExecPath())) {
-                // artifact was not specified by --filterArgument
-                continue;
-            }
-            if (outputIds.contains(artifact.getId()) && !filterArgument.equals("--output")) {
-                // artifact is the output of another java action
-                continue;
-            }
-            var relative = artifact.getExecPath();
-            LOG.info("...found bazel dependency " + relative);
-            artifactPaths.add(relative);
-        }
-        return artifactPaths;
-    }
-
-    private Set<String> readActionGraphFromV2(AnalysisProtosV2.ActionGraphContainer container, String filterArgument) {
-        var argumentPaths = new HashSet<String>();
-        var outputIds = new HashSet<Integer>();
-        for (var action : container.getActionsList()) {
-            var isFilterArgument = false;
-            for (var argument : action.getArgumentsList()) {
-                if (isFilterArgument && argument.startsWith("-")) {
-                    isFilterArgument = false;
-                    continue;
+            LOG.info("Running " + String.join(" ", command) + " ...");
+            var process =
+                    new ProcessBuilder()
+                            .command(command)
+                            .directory(bazelWorkspaceRoot.toFile())
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+            Set<String> result;
+            try (var in = process.getInputStream()) {
+                result = ActionGraphReader.read(in, filterArgument);
+            } catch (IOException | RuntimeException e) {
+                // Nobody is reading the rest of the output, so stop bazel before it blocks on a full pipe
+                if (process.isAlive()) {
+                    process.destroy();
+                    process.waitFor();
+                    throw e;
                 }
-                if (!isFilterArgument) {
-                    isFilterArgument = argument.equals(filterArgument);
-                    continue;
+                // If bazel failed, the output is truncated, and the exit code explains why
+                if (process.exitValue() != 0) {
+                    LOG.severe("`" + String.join(" ", command) + "` returned " + process.exitValue());
+                    return Set.of();
                 }
-                argumentPaths.add(argument);
-            }
-            outputIds.addAll(action.getOutputIdsList());
-        }
-        var artifactPaths = new HashSet<String>();
-        for (var artifact : container.getArtifactsList()) {
-            if (outputIds.contains(artifact.getId()) && !filterArgument.equals("--output")) {
-                // artifact is the output of another java action
-                continue;
+                throw e;
             }
-            var relative = buildPath(container.getPathFragmentsList(), artifact.getPathFragmentId());
-            if (!argumentPaths.contains(relative)) {
-                // artifact was not specified by --filterArgument
-                continue;
-            }
-            LOG.info("...found bazel dependency " + relative);
-            artifactPaths.add(relative);
-        }
-        return artifactPaths;
-    }
-
-    private static String buildPath(List<PathFragment> fragments, int id) {
-        for (PathFragment fragment : fragments) {
-            if (fragment.getId() == id) {
-                if (fragment.getParentId() != 0) {
-                    return buildPath(fragments, fragment.getParentId()) + "/" + fragment.getLabel();
-                }
-                return fragment.getLabel();
+            var exit = process.waitFor();
+            if (exit != 0) {
+                LOG.severe("`" + String.join(" ", command) + "` returned " + exit);
+                return Set.of();
             }
+            return result;
+        } catch (InterruptedException | IOException e) {
+            throw new RuntimeException(e);
         }
-        throw new RuntimeException();
     }
 
     private static Path fork(Path workspaceRoot, String[] command) {
@@ -497,5 +682,5 @@ class InferConfig {
         }
     }
 
-    private static final Path NOT_FOUND = Paths.get("");
+    static final Path NOT_FOUND = Paths.get("");
 }
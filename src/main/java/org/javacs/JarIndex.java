@@ -0,0 +1,203 @@
+package org.javacs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * JarIndex lists the top-level classes in one class path entry, along with their packages and the jars named by its
+ * manifest Class-Path. Jars are read from the zip central directory, and the index of each jar is cached on disk,
+ * keyed by the jar's path, size and modified time, so unchanged jars are never rescanned.
+ */
+class JarIndex {
+    static class ClassEntry {
+        final String className;
+        final boolean isPublic, isAbstract;
+
+        ClassEntry(String className, boolean isPublic, boolean isAbstract) {
+            this.className = className;
+            this.isPublic = isPublic;
+            this.isAbstract = isAbstract;
+        }
+    }
+
+    final List<ClassEntry> classes;
+    final SortedSet<String> packages;
+    /** The class path entries named by the Class-Path attribute of the manifest */
+    final List<Path> manifestClassPath;
+
+    private JarIndex(List<ClassEntry> classes, List<Path> manifestClassPath) {
+        this.classes = classes;
+        this.manifestClassPath = manifestClassPath;
+        this.packages = new TreeSet<>();
+        for (var c : classes) {
+            packages.add(StringSearch.mostName(c.className));
+        }
+    }
+
+    private static final JarIndex EMPTY = new JarIndex(List.of(), List.of());
+
+    static JarIndex of(Path entry) {
+        try {
+            if (Files.isDirectory(entry)) {
+                return scanDirectory(entry);
+            }
+            if (!Files.isRegularFile(entry)) {
+                return EMPTY;
+            }
+            var attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+            var key = entry.toAbsolutePath() + "\n" + attrs.size() + "\n" + attrs.lastModifiedTime().toMillis();
+            var cacheFile = CacheDir.root().resolve("jars").resolve(CacheDir.hash(key) + ".bin");
+            if (Files.exists(cacheFile)) {
+                try {
+                    return read(cacheFile);
+                } catch (IOException e) {
+                    LOG.warning("Failed to read " + cacheFile + ": " + e.getMessage());
+                }
+            }
+            var index = scanJar(entry);
+            index.write(cacheFile);
+            return index;
+        } catch (IOException e) {
+            LOG.warning("Failed to index " + entry + ": " + e.getMessage());
+            return EMPTY;
+        }
+    }
+
+    private static JarIndex scanJar(Path jar) throws IOException {
+        ZipFile zip;
+        try {
+            zip = new ZipFile(jar.toFile());
+        } catch (IOException e) {
+            // Not a jar file
+            return EMPTY;
+        }
+        try (zip) {
+            var classes = new ArrayList<ClassEntry>();
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                var className = topLevelClassName(entry.getName());
+                if (className == null) continue;
+                try (var in = new BufferedInputStream(zip.getInputStream(entry))) {
+                    classes.add(classEntry(className, in));
+                }
+            }
+            var manifestClassPath = List.<Path>of();
+            var manifest = zip.getEntry(JarFile.MANIFEST_NAME);
+            if (manifest != null) {
+                try (var in = zip.getInputStream(manifest)) {
+                    manifestClassPath = manifestClassPath(jar, new Manifest(in));
+                }
+            }
+            return new JarIndex(classes, manifestClassPath);
+        }
+    }
+
+    private static JarIndex scanDirectory(Path dir) throws IOException {
+        var classes = new ArrayList<ClassEntry>();
+        try (var stream = Files.walk(dir)) {
+            var it = stream.iterator();
+            while (it.hasNext()) {
+                var file = it.next();
+                var relative = dir.relativize(file).toString().replace(File.separatorChar, '/');
+                var className = topLevelClassName(relative);
+                if (className == null) continue;
+                try (var in = new BufferedInputStream(Files.newInputStream(file))) {
+                    classes.add(classEntry(className, in));
+                }
+            }
+        }
+        return new JarIndex(classes, List.of());
+    }
+
+    /** The name of the top-level class stored in `resource`, or null if it doesn't contain one */
+    private static String topLevelClassName(String resource) {
+        if (!resource.endsWith(".class") || resource.contains("$")) return null;
+        // Skip multi-release versions, module-info and package-info
+        if (resource.startsWith("META-INF/") || resource.contains("-")) return null;
+        var trim = resource.substring(0, resource.length() - ".class".length());
+        return trim.replace('/', '.');
+    }
+
+    private static ClassEntry classEntry(String className, InputStream in) {
+        try {
+            var header = ClassHeader.of(in);
+            return new ClassEntry(className, header.isPublic, header.isAbstract);
+        } catch (RuntimeException e) {
+            // If we can't read the header, assume the class is public so it's still offered
+            LOG.warning("Failed to read class header of " + className + ": " + e.getMessage());
+            return new ClassEntry(className, true, false);
+        }
+    }
+
+    /** The entries named by the Class-Path attribute of `manifest`, relative to `jar` */
+    private static List<Path> manifestClassPath(Path jar, Manifest manifest) {
+        var attribute = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+        if (attribute == null) return List.of();
+        var paths = new ArrayList<Path>();
+        for (var path : attribute.split(" ")) {
+            if (path.isEmpty()) continue;
+            try {
+                var uri = jar.toUri().resolve(path);
+                if (uri.getScheme().equals("file")) {
+                    paths.add(Paths.get(uri));
+                }
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Invalid Class-Path entry: " + path);
+            }
+        }
+        return paths;
+    }
+
+    private static final int MAGIC = 0x4a4a4152, VERSION = 1;
+    private static final int PUBLIC = 1, ABSTRACT = 2;
+
+    private void write(Path cacheFile) {
+        try {
+            CacheDir.write(
+                    cacheFile,
+                    MAGIC,
+                    VERSION,
+                    out -> {
+                        out.writeInt(manifestClassPath.size());
+                        for (var path : manifestClassPath) {
+                            out.writeUTF(path.toString());
+                        }
+                        out.writeInt(classes.size());
+                        for (var c : classes) {
+                            out.writeUTF(c.className);
+                            out.writeByte((c.isPublic ? PUBLIC : 0) | (c.isAbstract ? ABSTRACT : 0));
+                        }
+                    });
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    private static JarIndex read(Path cacheFile) throws IOException {
+        try (var in = CacheDir.read(cacheFile, MAGIC, VERSION)) {
+            var manifestClassPath = new ArrayList<Path>();
+            var pathCount = in.readInt();
+            for (var i = 0; i < pathCount; i++) {
+                manifestClassPath.add(Paths.get(in.readUTF()));
+            }
+            var classes = new ArrayList<ClassEntry>();
+            var classCount = in.readInt();
+            for (var i = 0; i < classCount; i++) {
+                var className = in.readUTF();
+                var flags = in.readByte();
+                classes.add(new ClassEntry(className, (flags & PUBLIC) != 0, (flags & ABSTRACT) != 0));
+            }
+            return new JarIndex(classes, manifestClassPath);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -3,25 +3,42 @@ package org.javacs;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
-import java.util.function.Predicate;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.tools.*;
+import org.javacs.index.SymbolIndex;
 
 class JavaCompilerService implements CompilerProvider {
     // Not modifiable! If you want to edit these, you need to create a new instance
     final Set<Path> classPath, docPath;
     final Set<String> addExports;
-    final ReusableCompiler compiler = new ReusableCompiler();
+    final ReusableCompiler compiler;
     final Docs docs;
     final Set<String> jdkClasses = ScanClassPath.jdkTopLevelClasses(), classPathClasses;
-    // Diagnostics from the last compilation task
-    final List<Diagnostic<? extends JavaFileObject>> diags = new ArrayList<>();
-    // Use the same file manager for multiple tasks, so we don't repeatedly re-compile the same files
-    // TODO intercept files that aren't in the batch and erase method bodies so compilation is faster
+    // Used to look up source files outside of compilation; each compiler context has its own file manager, which
+    // erases the method bodies of files that aren't in the batch and aren't open
     final SourceFileManager fileManager;
 
+    /** By default, compile on up to one thread per core, but keep at most 4 javac contexts in memory */
+    static int defaultCompilers() {
+        return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
     JavaCompilerService(Set<Path> classPath, Set<Path> docPath, Set<String> addExports) {
+        this(classPath, docPath, addExports, defaultCompilers());
+    }
+
+    JavaCompilerService(Set<Path> classPath, Set<Path> docPath, Set<String> addExports, int compilers) {
+        this(classPath, docPath, addExports, compilers, true);
+    }
+
+    JavaCompilerService(
+            Set<Path> classPath,
+            Set<Path> docPath,
+            Set<String> addExports,
+            int compilers,
+            boolean eraseMethodBodies) {
         System.err.println("Class path:");
         for (var p : classPath) {
             System.err.println("  " + p);
@@ -37,64 +54,179 @@ class JavaCompilerService implements CompilerProvider {
         this.docs = new Docs(docPath);
         this.classPathClasses = ScanClassPath.classPathTopLevelClasses(classPath);
         this.fileManager = new SourceFileManager();
+        this.compiler = new ReusableCompiler(compilers, () -> new SourceFileManager(eraseMethodBodies));
     }
 
-    private CompileBatch cachedCompile;
-    private Map<JavaFileObject, Long> cachedModified = new HashMap<>();
+    /** The most batches we'll keep around, each of which holds a javac context with its own symbol table */
+    static final int MAX_CACHED_COMPILES = 3;
+    /** If more than this fraction of the heap is in use, keep only the batch we're about to use */
+    private static final double MAX_CACHED_HEAP_FRACTION = 0.7;
+
+    /**
+     * Recent compile batches in least-recently-used order, keyed by the modified time of each source. Each batch holds
+     * one of the compiler's contexts until it is evicted. Guarded by `this`.
+     */
+    private final LinkedHashMap<Map<JavaFileObject, Long>, CompileBatch> cachedCompiles =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Batches that are being compiled right now, each of which holds a context but isn't in cachedCompiles yet */
+    private final Set<Map<JavaFileObject, Long>> compiling = new HashSet<>();
+
+    private static Map<JavaFileObject, Long> modifiedTimes(Collection<? extends JavaFileObject> sources) {
+        var modified = new HashMap<JavaFileObject, Long>();
+        for (var f : sources) {
+            modified.put(f, f.getLastModified());
+        }
+        return modified;
+    }
 
-    private boolean needsCompile(Collection<? extends JavaFileObject> sources) {
-        if (cachedModified.size() != sources.size()) {
+    /** Make room for one more batch, evicting batches that are out-of-date, least recently used, or too big */
+    private void evictCompiles(Map<JavaFileObject, Long> incoming) {
+        var it = cachedCompiles.entrySet().iterator();
+        while (it.hasNext()) {
+            var entry = it.next();
+            var batch = entry.getValue();
+            if (batch.users > 0) continue;
+            var size = cachedCompiles.size();
+            if (size >= MAX_CACHED_COMPILES || isSuperseded(entry.getKey(), incoming) || isHeapFull()) {
+                batch.borrow.close();
+                it.remove();
+            }
+        }
+    }
+
+    /** Evict the least-recently-used batch that isn't in use, so another batch can use its context */
+    private boolean evictOldest() {
+        var it = cachedCompiles.values().iterator();
+        while (it.hasNext()) {
+            var batch = it.next();
+            if (batch.users > 0) continue;
+            batch.borrow.close();
+            it.remove();
             return true;
         }
-        for (var f : sources) {
-            if (!cachedModified.containsKey(f)) {
-                return true;
-            }
-            if (f.getLastModified() != cachedModified.get(f)) {
+        return false;
+    }
+
+    /** A batch is superseded if one of its sources has been compiled again with a different modified time */
+    private static boolean isSuperseded(Map<JavaFileObject, Long> cached, Map<JavaFileObject, Long> incoming) {
+        for (var f : incoming.keySet()) {
+            var time = cached.get(f);
+            if (time != null && !time.equals(incoming.get(f))) {
                 return true;
             }
         }
         return false;
     }
 
-    private void loadCompile(Collection<? extends JavaFileObject> sources) {
-        if (cachedCompile != null) {
-            if (!cachedCompile.closed) {
-                throw new RuntimeException("Compiler is still in-use!");
-            }
-            cachedCompile.borrow.close();
-        }
-        cachedCompile = doCompile(sources);
-        cachedModified.clear();
-        for (var f : sources) {
-            cachedModified.put(f, f.getLastModified());
-        }
+    private static boolean isHeapFull() {
+        var runtime = Runtime.getRuntime();
+        var used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() * MAX_CACHED_HEAP_FRACTION;
     }
 
-    private CompileBatch doCompile(Collection<? extends JavaFileObject> sources) {
+    private CompileBatch doCompile(Collection<? extends JavaFileObject> sources, BooleanSupplier cancelled) {
         if (sources.isEmpty()) throw new RuntimeException("empty sources");
-        var firstAttempt = new CompileBatch(this, sources);
+        var dependencies = secondaryClassFiles(sources);
+        var firstAttempt = new CompileBatch(this, sources, sourceFiles(dependencies), cancelled);
         var addFiles = firstAttempt.needsAdditionalSources();
         if (addFiles.isEmpty()) return firstAttempt;
         // If the compiler needs additional source files that contain package-private files
         LOG.info("...need to recompile with " + addFiles);
-        firstAttempt.close();
         firstAttempt.borrow.close();
-        var moreSources = new ArrayList<JavaFileObject>();
-        moreSources.addAll(sources);
-        for (var add : addFiles) {
-            moreSources.add(new SourceFileObject(add));
+        dependencies.addAll(addFiles);
+        return new CompileBatch(this, sources, sourceFiles(dependencies), cancelled);
+    }
+
+    /**
+     * The files that declare non-public classes named in `sources`, in files with different names, which javac won't
+     * find on the source path. Only the packages of `sources` are checked, because these classes aren't visible
+     * anywhere else.
+     */
+    Set<Path> secondaryClassFiles(Collection<? extends JavaFileObject> sources) {
+        var files = new HashSet<Path>();
+        for (var s : sources) {
+            if (!s.toUri().getScheme().equals("file")) continue;
+            files.add(Paths.get(s.toUri()));
         }
-        return new CompileBatch(this, moreSources);
+        var found = new TreeSet<Path>();
+        var index = FileStore.secondaryClassIndex();
+        for (var file : files) {
+            if (!FileStore.contains(file)) continue;
+            for (var entry : index.classesIn(FileStore.packageName(file)).entrySet()) {
+                var declaringFile = entry.getValue();
+                if (files.contains(declaringFile) || found.contains(declaringFile)) continue;
+                if (StringSearch.containsWord(file, entry.getKey())) {
+                    found.add(declaringFile);
+                }
+            }
+        }
+        if (!found.isEmpty()) {
+            LOG.info("...compile with " + found + " which declare non-public classes");
+        }
+        return found;
     }
 
-    private CompileBatch compileBatch(Collection<? extends JavaFileObject> sources) {
-        if (needsCompile(sources)) {
-            loadCompile(sources);
-        } else {
-            LOG.info("...using cached compile");
+    static List<JavaFileObject> sourceFiles(Collection<Path> files) {
+        var list = new ArrayList<JavaFileObject>();
+        for (var f : files) {
+            list.add(new SourceFileObject(f));
         }
-        return cachedCompile;
+        return list;
+    }
+
+    private CompileBatch compileBatch(Collection<? extends JavaFileObject> sources, BooleanSupplier cancelled) {
+        var key = modifiedTimes(sources);
+        synchronized (this) {
+            while (true) {
+                var cached = cachedCompiles.get(key);
+                // javac isn't thread-safe, so a batch can only be shared by nested tasks on the same thread
+                if (cached != null && (cached.users == 0 || cached.owner == Thread.currentThread())) {
+                    LOG.info("...using cached compile");
+                    cached.users++;
+                    cached.owner = Thread.currentThread();
+                    return cached;
+                }
+                // If another thread is compiling or using the same sources, wait for it and use its result
+                if (cached == null && !compiling.contains(key)) {
+                    evictCompiles(key);
+                    // Don't start until a context is free, so we never wait on a context held by an unused batch
+                    var free = cachedCompiles.size() + compiling.size() < compiler.size() || evictOldest();
+                    if (free) break;
+                }
+                waitForRelease();
+            }
+            compiling.add(key);
+        }
+        CompileBatch batch = null;
+        try {
+            batch = doCompile(sources, cancelled);
+        } finally {
+            synchronized (this) {
+                compiling.remove(key);
+                if (batch != null) {
+                    batch.users++;
+                    batch.owner = Thread.currentThread();
+                    cachedCompiles.put(key, batch);
+                }
+                notifyAll();
+            }
+        }
+        return batch;
+    }
+
+    private void waitForRelease() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Called when a task is finished with `batch`, so it can be reused by another task or evicted */
+    synchronized void release(CompileBatch batch) {
+        batch.users--;
+        if (batch.users == 0) batch.owner = null;
+        notifyAll();
     }
 
     private static final Pattern PACKAGE_EXTRACTOR = Pattern.compile("^([a-z][_a-zA-Z0-9]*\\.)*[a-z][_a-zA-Z0-9]*");
@@ -117,37 +249,30 @@ class JavaCompilerService implements CompilerProvider {
         return "";
     }
 
-    private static final Cache<String, Boolean> cacheContainsWord = new Cache<>();
-
     private boolean containsWord(Path file, String word) {
-        if (cacheContainsWord.needs(file, word)) {
-            cacheContainsWord.load(file, word, StringSearch.containsWord(file, word));
-        }
-        return cacheContainsWord.get(file, word);
+        return FileStore.wordIndex().contains(file, word);
     }
 
-    private static final Cache<Void, List<String>> cacheContainsType = new Cache<>();
+    private static final Cache<Void, List<String>> cacheContainsType = new Cache<>("containsType");
 
     private boolean containsType(Path file, String className) {
-        if (cacheContainsType.needs(file, null)) {
-            var root = parse(file).root;
-            var types = new ArrayList<String>();
-            new FindTypeDeclarations().scan(root, types);
-            cacheContainsType.load(file, null, types);
-        }
-        return cacheContainsType.get(file, null).contains(className);
+        return cacheContainsType.get(file, null, () -> findTypeDeclarations(file)).contains(className);
     }
 
-    private Cache<Void, List<String>> cacheFileImports = new Cache<>();
+    private List<String> findTypeDeclarations(Path file) {
+        var root = parse(file).root;
+        var types = new ArrayList<String>();
+        new FindTypeDeclarations().scan(root, types);
+        return types;
+    }
 
-    private List<String> readImports(Path file) {
-        if (cacheFileImports.needs(file, null)) {
-            loadImports(file);
-        }
-        return cacheFileImports.get(file, null);
+    private static final Cache<Void, List<String>> cacheFileImports = new Cache<>("fileImports");
+
+    static List<String> readImports(Path file) {
+        return cacheFileImports.get(file, null, () -> loadImports(file));
     }
 
-    private void loadImports(Path file) {
+    private static List<String> loadImports(Path file) {
         var list = new ArrayList<String>();
         var importClass = Pattern.compile("^import +([\\w\\.]+\\.\\w+);");
         var importStar = Pattern.compile("^import +([\\w\\.]+\\.\\*);");
@@ -170,7 +295,7 @@ class JavaCompilerService implements CompilerProvider {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        cacheFileImports.load(file, null, list);
+        return list;
     }
 
     @Override
@@ -202,7 +327,11 @@ class JavaCompilerService implements CompilerProvider {
 
     @Override
     public List<String> packagePrivateTopLevelTypes(String packageName) {
-        return List.of("TODO");
+        var all = new ArrayList<String>();
+        for (var className : FileStore.secondaryClassIndex().classesIn(packageName).keySet()) {
+            all.add(packageName.isEmpty() ? className : packageName + "." + className);
+        }
+        return all;
     }
 
     private boolean containsImport(Path file, String className) {
@@ -215,10 +344,20 @@ class JavaCompilerService implements CompilerProvider {
         return false;
     }
 
+    /** If we had to index this many files to bring the symbol index or package graph up-to-date, save it right away. */
+    private static final int SAVE_SYMBOL_INDEX_AFTER = 100;
+
     @Override
-    public Iterable<Path> search(String query) {
-        Predicate<Path> test = f -> StringSearch.containsWordMatching(f, query);
-        return () -> FileStore.all().stream().filter(test).iterator();
+    public SymbolIndex symbolIndex() {
+        var index = FileStore.symbolIndex();
+        var indexed = index.refresh(this::parse, f -> FileStore.modified(f).toEpochMilli());
+        if (indexed > 0) {
+            LOG.info(String.format("...indexed symbols in %d changed files", indexed));
+        }
+        if (indexed >= SAVE_SYMBOL_INDEX_AFTER) {
+            FileStore.saveSymbolIndex();
+        }
+        return index;
     }
 
     @Override
@@ -240,16 +379,25 @@ class JavaCompilerService implements CompilerProvider {
 
     private Optional<JavaFileObject> findPublicTypeDeclarationInDocPath(String className) {
         try {
-            var found =
-                    docs.fileManager.getJavaFileForInput(
-                            StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
-            return Optional.ofNullable(found);
+            // SourceFileManager isn't thread-safe
+            synchronized (docs.fileManager) {
+                var found =
+                        docs.fileManager.getJavaFileForInput(
+                                StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
+                return Optional.ofNullable(found);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     private Optional<JavaFileObject> findPublicTypeDeclarationInJdk(String className) {
+        synchronized (docs.fileManager) {
+            return findInJdkModules(className);
+        }
+    }
+
+    private Optional<JavaFileObject> findInJdkModules(String className) {
         try {
             for (var module : ScanClassPath.JDK_MODULES) {
                 var moduleLocation = docs.fileManager.getLocationForModule(StandardLocation.MODULE_SOURCE_PATH, module);
@@ -286,9 +434,12 @@ class JavaCompilerService implements CompilerProvider {
     private Path findPublicTypeDeclaration(String className) {
         JavaFileObject source;
         try {
-            source =
-                    fileManager.getJavaFileForInput(
-                            StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
+            // SourceFileManager isn't thread-safe
+            synchronized (fileManager) {
+                source =
+                        fileManager.getJavaFileForInput(
+                                StandardLocation.SOURCE_PATH, className, JavaFileObject.Kind.SOURCE);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -301,11 +452,11 @@ class JavaCompilerService implements CompilerProvider {
 
     @Override
     public Path[] findTypeReferences(String className) {
-        var packageName = packageName(className);
         var simpleName = simpleName(className);
+        var packages = packageGraph().importersOf(packageName(className));
         var candidates = new ArrayList<Path>();
-        for (var f : FileStore.all()) {
-            if (containsWord(f, packageName) && containsImport(f, className) && containsWord(f, simpleName)) {
+        for (var f : FileStore.wordIndex().filesContaining(simpleName)) {
+            if (packages.contains(FileStore.packageName(f)) && containsImport(f, className)) {
                 candidates.add(f);
             }
         }
@@ -314,15 +465,40 @@ class JavaCompilerService implements CompilerProvider {
 
     @Override
     public Path[] findMemberReferences(String className, String memberName) {
+        var files = FileStore.wordIndex().filesContaining(memberName);
+        var packageName = packageName(className);
+        // Members of library classes can be used from anywhere
+        if (FileStore.list(packageName).isEmpty()) {
+            return files.toArray(Path[]::new);
+        }
+        var packages = packageGraph().reachableFrom(packageName);
         var candidates = new ArrayList<Path>();
-        for (var f : FileStore.all()) {
-            if (containsWord(f, memberName)) {
+        for (var f : files) {
+            if (packages.contains(FileStore.packageName(f)) || mentionsPackage(f, packageName)) {
                 candidates.add(f);
             }
         }
+        LOG.info(
+                String.format(
+                        "...%d of %d files that contain `%s` can see %s",
+                        candidates.size(), files.size(), memberName, className));
         return candidates.toArray(Path[]::new);
     }
 
+    /** Does `file` mention `packageName` by name, for example in a fully-qualified name that needs no import? */
+    private static boolean mentionsPackage(Path file, String packageName) {
+        if (!FileStore.wordIndex().contains(file, StringSearch.lastName(packageName))) return false;
+        return FileStore.contents(file).contains(packageName + ".");
+    }
+
+    private PackageGraph packageGraph() {
+        var graph = FileStore.packageGraph();
+        if (graph.refresh() >= SAVE_SYMBOL_INDEX_AFTER) {
+            FileStore.savePackageGraph();
+        }
+        return graph;
+    }
+
     @Override
     public ParseTask parse(Path file) {
         var parser = Parser.parseFile(file);
@@ -346,8 +522,25 @@ class JavaCompilerService implements CompilerProvider {
 
     @Override
     public CompileTask compile(Collection<? extends JavaFileObject> sources) {
-        var compile = compileBatch(sources);
-        return new CompileTask(compile.task, compile.roots, diags, compile::close);
+        return compile(sources, () -> false);
+    }
+
+    /**
+     * Compile `files` like compile(...), but give up as soon as `cancelled` is true, and throw CancellationException.
+     * Used by lint, so a compile that was made obsolete by an edit doesn't hold on to a compiler until it's done.
+     */
+    CompileTask compile(List<Path> files, BooleanSupplier cancelled) {
+        var sources = new ArrayList<JavaFileObject>();
+        for (var f : files) {
+            sources.add(new SourceFileObject(f));
+        }
+        return compile(sources, cancelled);
+    }
+
+    private CompileTask compile(Collection<? extends JavaFileObject> sources, BooleanSupplier cancelled) {
+        var compile = compileBatch(sources, cancelled);
+        return new CompileTask(
+                compile.task, compile.roots, compile.diags, compile.dropped, compile.skipped, compile::close);
     }
 
     private static final Logger LOG = Logger.getLogger("main");
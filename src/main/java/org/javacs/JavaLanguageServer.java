@@ -9,6 +9,9 @@ import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 import javax.lang.model.element.*;
 import org.javacs.action.CodeActionProvider;
@@ -31,10 +34,11 @@ class JavaLanguageServer extends LanguageServer {
     private final LanguageClient client;
     private JavaCompilerService cacheCompiler;
     private JsonObject cacheSettings;
-    private JsonObject settings = new JsonObject();
-    private boolean modifiedBuild = true;
+    // Settings are changed by the main thread, and the compiler is created lazily by whichever thread needs it first
+    private volatile JsonObject settings = new JsonObject();
+    private volatile boolean modifiedBuild = true;
 
-    JavaCompilerService compiler() {
+    synchronized JavaCompilerService compiler() {
         if (needsCompiler()) {
             cacheCompiler = createCompiler();
             cacheSettings = settings;
@@ -55,12 +59,35 @@ class JavaLanguageServer extends LanguageServer {
     }
 
     void lint(Collection<Path> files) {
-        if (files.isEmpty()) return;
+        lint(files, () -> false);
+    }
+
+    /** Log cache statistics after this many lints, and at shutdown */
+    private static final int REPORT_CACHES_EVERY = 100;
+
+    private final AtomicInteger lintsSinceReport = new AtomicInteger();
+
+    private void reportCaches() {
+        lintsSinceReport.set(0);
+        LOG.info("Caches " + Cache.allStats());
+    }
+
+    /**
+     * Lint `files`, stopping early and publishing nothing once `cancelled` is true. Returns true if `files` were
+     * compiled and their diagnostics published.
+     */
+    private boolean lint(Collection<Path> files, BooleanSupplier cancelled) {
+        if (files.isEmpty()) return false;
         LOG.info("Lint " + files.size() + " files...");
         var started = Instant.now();
-        try (var task = compiler().compile(files.toArray(Path[]::new))) {
+        try (var task = compiler().compile(List.copyOf(files), cancelled)) {
             var compiled = Instant.now();
             LOG.info("...compiled in " + Duration.between(started, compiled).toMillis() + " ms");
+            dependencies.update(task);
+            if (cancelled.getAsBoolean()) {
+                LOG.info("...files changed while compiling, don't publish");
+                return false;
+            }
             for (var errs : new ErrorProvider(task).errors()) {
                 client.publishDiagnostics(errs);
             }
@@ -69,7 +96,14 @@ class JavaLanguageServer extends LanguageServer {
             }
             var published = Instant.now();
             LOG.info("...published in " + Duration.between(started, published).toMillis() + " ms");
+        } catch (CancellationException e) {
+            LOG.info("...files changed while compiling, stopped");
+            return false;
         }
+        if (lintsSinceReport.incrementAndGet() >= REPORT_CACHES_EVERY) {
+            reportCaches();
+        }
+        return true;
     }
 
     private void javaStartProgress(JavaStartProgressParams params) {
@@ -84,6 +118,12 @@ class JavaLanguageServer extends LanguageServer {
         client.customNotification("java/endProgress", JsonNull.INSTANCE);
     }
 
+    /** Called when maven finishes refreshing a stale dependency cache, so the next request sees the new class path */
+    private void mavenDependenciesChanged() {
+        LOG.info("Maven dependencies changed, will re-create compiler");
+        modifiedBuild = true;
+    }
+
     private JavaCompilerService createCompiler() {
         Objects.requireNonNull(workspaceRoot, "Can't create compiler because workspaceRoot has not been initialized");
 
@@ -96,11 +136,11 @@ class JavaLanguageServer extends LanguageServer {
         // If classpath is specified by the user, don't infer anything
         if (!classPath.isEmpty()) {
             javaEndProgress();
-            return new JavaCompilerService(classPath, docPath(), addExports);
+            return new JavaCompilerService(classPath, docPath(), addExports, compilerThreads());
         }
         // Otherwise, combine inference with user-specified external dependencies
         else {
-            var infer = new InferConfig(workspaceRoot, externalDependencies);
+            var infer = new InferConfig(workspaceRoot, externalDependencies, this::mavenDependenciesChanged);
 
             javaReportProgress(new JavaReportProgressParams("Inferring class path"));
             classPath = infer.classPath();
@@ -109,7 +149,7 @@ class JavaLanguageServer extends LanguageServer {
             var docPath = infer.buildDocPath();
 
             javaEndProgress();
-            return new JavaCompilerService(classPath, docPath, addExports);
+            return new JavaCompilerService(classPath, docPath, addExports, compilerThreads());
         }
     }
 
@@ -142,6 +182,17 @@ class JavaLanguageServer extends LanguageServer {
         }
         return paths;
     }
+
+    private int compilerThreads() {
+        if (!settings.has("compilerThreads")) return JavaCompilerService.defaultCompilers();
+        return Math.max(1, settings.get("compilerThreads").getAsInt());
+    }
+
+    private long cacheMemory() {
+        if (!settings.has("cacheMemory")) return Cache.DEFAULT_BUDGET;
+        return Math.max(1, settings.get("cacheMemory").getAsLong()) * 1024 * 1024;
+    }
+
     private Set<String> addExports() {
         if (!settings.has("addExports")) return Set.of();
         var array = settings.getAsJsonArray("addExports");
@@ -155,7 +206,6 @@ class JavaLanguageServer extends LanguageServer {
     @Override
     public InitializeResult initialize(InitializeParams params) {
         this.workspaceRoot = Paths.get(params.rootUri);
-        FileStore.setWorkspaceRoots(Set.of(Paths.get(params.rootUri)));
 
         var c = new JsonObject();
         c.addProperty("textDocumentSync", 2); // Incremental
@@ -195,6 +245,16 @@ class JavaLanguageServer extends LanguageServer {
     @Override
     public void initialized() {
         client.registerCapability("workspace/didChangeWatchedFiles", watchFiles(watchFiles));
+        indexWorkspace();
+    }
+
+    /** Find every java source in the workspace, reporting progress to the client as we go */
+    private void indexWorkspace() {
+        javaStartProgress(new JavaStartProgressParams("Index workspace"));
+        FileStore.setWorkspaceRoots(
+                Set.of(workspaceRoot),
+                found -> javaReportProgress(new JavaReportProgressParams("Found " + found + " java files")));
+        javaEndProgress();
     }
 
     private JsonObject watchFiles(String... globPatterns) {
@@ -210,10 +270,23 @@ class JavaLanguageServer extends LanguageServer {
     }
 
     @Override
-    public void shutdown() {}
+    public void shutdown() {
+        reportCaches();
+        FileStore.saveSymbolIndex();
+        FileStore.savePackageGraph();
+    }
 
     public JavaLanguageServer(LanguageClient client) {
+        this(client, true);
+    }
+
+    /**
+     * If `lintInBackground` is false, opened and edited files aren't linted until someone calls lint(...), so tests can
+     * see the results of each lint without racing the background thread.
+     */
+    JavaLanguageServer(LanguageClient client, boolean lintInBackground) {
         this.client = client;
+        this.lintInBackground = lintInBackground;
     }
 
     @Override
@@ -226,6 +299,7 @@ class JavaLanguageServer extends LanguageServer {
         var java = change.settings.getAsJsonObject().get("java");
         LOG.info("Received java settings " + java);
         settings = java.getAsJsonObject();
+        Cache.setBudget(cacheMemory());
     }
 
     @Override
@@ -242,6 +316,7 @@ class JavaLanguageServer extends LanguageServer {
                         break;
                     case FileChangeType.Deleted:
                         FileStore.externalDelete(file);
+                        dependencies.remove(file);
                         break;
                 }
                 return;
@@ -480,22 +555,37 @@ class JavaLanguageServer extends LanguageServer {
         return new RenameVariable(file, (int) position, newName);
     }
 
-    private boolean uncheckedChanges = false;
-    private Path lastEdited = Paths.get("");
+    private final boolean lintInBackground;
+    private final LintScheduler lintScheduler =
+            new LintScheduler(
+                    new LintScheduler.Linter() {
+                        @Override
+                        public boolean lint(List<Path> files, boolean edited, BooleanSupplier cancelled) {
+                            return lintInBackground(files, edited, cancelled);
+                        }
+
+                        @Override
+                        public void linted(Path file, BooleanSupplier cancelled) {
+                            checkDependents(file, cancelled);
+                        }
+                    });
 
     @Override
     public void didOpenTextDocument(DidOpenTextDocumentParams params) {
         FileStore.open(params);
         if (!FileStore.isJavaFile(params.textDocument.uri)) return;
-        lastEdited = Paths.get(params.textDocument.uri);
-        uncheckedChanges = true;
+        if (lintInBackground) {
+            lintScheduler.edited(Paths.get(params.textDocument.uri));
+        }
     }
 
     @Override
     public void didChangeTextDocument(DidChangeTextDocumentParams params) {
         FileStore.change(params);
-        lastEdited = Paths.get(params.textDocument.uri);
-        uncheckedChanges = true;
+        if (!FileStore.isJavaFile(params.textDocument.uri)) return;
+        if (lintInBackground) {
+            lintScheduler.edited(Paths.get(params.textDocument.uri));
+        }
     }
 
     @Override
@@ -503,6 +593,7 @@ class JavaLanguageServer extends LanguageServer {
         FileStore.close(params);
 
         if (FileStore.isJavaFile(params.textDocument.uri)) {
+            lintScheduler.closed(Paths.get(params.textDocument.uri));
             // Clear diagnostics
             client.publishDiagnostics(new PublishDiagnosticsParams(params.textDocument.uri, List.of()));
         }
@@ -522,16 +613,31 @@ class JavaLanguageServer extends LanguageServer {
     public void didSaveTextDocument(DidSaveTextDocumentParams params) {
         if (FileStore.isJavaFile(params.textDocument.uri)) {
             // Re-lint all active documents
-            lint(FileStore.activeDocuments());
+            if (lintInBackground) {
+                lintScheduler.schedule(FileStore.activeDocuments());
+            } else {
+                lint(FileStore.activeDocuments());
+            }
         }
     }
 
-    @Override
-    public void doAsyncWork() {
-        if (uncheckedChanges && FileStore.activeDocuments().contains(lastEdited)) {
-            lint(List.of(lastEdited));
-            uncheckedChanges = false;
-        }
+    /** How far to follow the dependency graph, and how many files to re-check, when the API of a file changes */
+    private static final int MAX_DEPENDENT_DISTANCE = 2, MAX_DEPENDENTS = 100;
+
+    private final DependencyGraph dependencies = new DependencyGraph();
+
+    /** Called by lintScheduler on its own thread */
+    private boolean lintInBackground(List<Path> files, boolean edited, BooleanSupplier cancelled) {
+        if (edited && !FileStore.activeDocuments().contains(files.get(0))) return false;
+        return lint(files, cancelled);
+    }
+
+    /** If the declarations in `file` changed, re-check the open and closed files that depend on it, closest first */
+    private void checkDependents(Path file, BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean() || !dependencies.signatureChanged(file)) return;
+        var dependents = dependencies.dependents(file, MAX_DEPENDENT_DISTANCE, MAX_DEPENDENTS);
+        LOG.info(String.format("API of %s changed, re-check %d dependents", file, dependents.size()));
+        lintScheduler.schedule(dependents);
     }
 
     private static final Logger LOG = Logger.getLogger("main");
@@ -0,0 +1,190 @@
+package org.javacs;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LintScheduler lints files on its own thread, so requests like completion never wait behind a lint.
+ *
+ * <p>The document the user is editing comes first. Each edit restarts a short delay, and the document is linted when
+ * the delay runs out. The delay for each file is about as long as linting it took last time, because there's no point
+ * starting a lint that the next keystroke would make obsolete. If the document is edited or closed while it's being
+ * linted, the lint is cancelled, and the compile stops at the next step it checks.
+ *
+ * <p>Other files, like the dependents of an edited file, are linted in small batches whenever the focused document
+ * isn't waiting. If the focused document becomes due while a batch is being linted, the batch is cancelled and put
+ * back at the front of the queue.
+ */
+class LintScheduler {
+    interface Linter {
+        /**
+         * Lint `files`, stopping early and publishing nothing once `cancelled` is true. `edited` is true if `files` is
+         * the focused document, which was just edited. Returns true if `files` were compiled to the end, and false if
+         * there was nothing to lint or the lint was cancelled.
+         */
+        boolean lint(List<Path> files, boolean edited, BooleanSupplier cancelled);
+
+        /** Called after the focused document `file` has been linted. This isn't counted in the time it took to lint. */
+        default void linted(Path file, BooleanSupplier cancelled) {}
+    }
+
+    /** The shortest and longest time to wait after an edit, and the time to wait before we've linted a file */
+    static final Duration MIN_DELAY = Duration.ofMillis(50),
+            MAX_DELAY = Duration.ofMillis(1000),
+            DEFAULT_DELAY = Duration.ofMillis(200);
+
+    /** How many other files to lint together */
+    static final int BATCH_SIZE = 10;
+
+    private final Linter linter;
+    private final ScheduledExecutorService thread =
+            Executors.newSingleThreadScheduledExecutor(
+                    task -> {
+                        var thread = new Thread(task, "lint");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+    /** The document that was edited most recently, if it hasn't been linted since */
+    private Path focused;
+    /** When to lint `focused`, in System.nanoTime() */
+    private long due;
+    /** Other files waiting to be linted, in order */
+    private final LinkedHashSet<Path> waiting = new LinkedHashSet<>();
+    /** How long it took to lint each file that has been focused, as a moving average */
+    private final Map<Path, Duration> lintTime = new HashMap<>();
+
+    LintScheduler(Linter linter) {
+        this.linter = linter;
+    }
+
+    /** `file` was opened or edited, lint it after a delay, ahead of everything else */
+    synchronized void edited(Path file) {
+        focused = file;
+        waiting.remove(file);
+        var delay = delay(file).toNanos();
+        due = System.nanoTime() + delay;
+        thread.schedule(this::run, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /** Lint `files` when nothing more important is waiting */
+    synchronized void schedule(Collection<Path> files) {
+        var added = false;
+        for (var f : files) {
+            if (f.equals(focused)) continue;
+            added |= waiting.add(f);
+        }
+        if (added) thread.execute(this::run);
+    }
+
+    /** `file` was closed, so don't lint it as the focused document */
+    synchronized void closed(Path file) {
+        if (file.equals(focused)) focused = null;
+    }
+
+    /** The focused document is waiting, and its delay has run out */
+    private synchronized boolean focusedIsDue() {
+        return focused != null && System.nanoTime() - due >= 0;
+    }
+
+    /** Put `files` back at the front of the queue, except the focused document, which will be linted anyway */
+    private synchronized void requeue(List<Path> files) {
+        var requeued = new LinkedHashSet<Path>(files);
+        requeued.remove(focused);
+        requeued.addAll(waiting);
+        waiting.clear();
+        waiting.addAll(requeued);
+    }
+
+    synchronized Duration delay(Path file) {
+        var time = lintTime.get(file);
+        if (time == null) return DEFAULT_DELAY;
+        if (time.compareTo(MIN_DELAY) < 0) return MIN_DELAY;
+        if (time.compareTo(MAX_DELAY) > 0) return MAX_DELAY;
+        return time;
+    }
+
+    private synchronized void recordLintTime(Path file, Duration time) {
+        var previous = lintTime.get(file);
+        if (previous != null) {
+            time = previous.multipliedBy(3).plus(time).dividedBy(4);
+        }
+        lintTime.put(file, time);
+    }
+
+    /** Runs on `thread`. Scheduled after each edit, and whenever there may be more work. */
+    private void run() {
+        List<Path> files;
+        boolean edited;
+        synchronized (this) {
+            if (focused != null) {
+                // The user is still typing, a later run will lint focused
+                if (System.nanoTime() - due < 0) return;
+                files = List.of(focused);
+                edited = true;
+                focused = null;
+            } else if (!waiting.isEmpty()) {
+                files = new ArrayList<>();
+                var it = waiting.iterator();
+                while (it.hasNext() && files.size() < BATCH_SIZE) {
+                    files.add(it.next());
+                    it.remove();
+                }
+                edited = false;
+            } else {
+                return;
+            }
+        }
+        var modified = new HashMap<Path, Instant>();
+        var open = new HashSet<Path>();
+        for (var f : files) {
+            modified.put(f, FileStore.modified(f));
+            if (FileStore.activeDocuments().contains(f)) open.add(f);
+        }
+        // Cancel if any file is edited, or any open file is closed, which clears its diagnostics.
+        // A batch of other files also gives way to the focused document.
+        BooleanSupplier cancelled =
+                () -> {
+                    for (var f : files) {
+                        if (!FileStore.modified(f).equals(modified.get(f))) return true;
+                    }
+                    for (var f : open) {
+                        if (!FileStore.activeDocuments().contains(f)) return true;
+                    }
+                    return !edited && focusedIsDue();
+                };
+        var started = Instant.now();
+        var finished = false;
+        try {
+            finished = linter.lint(files, edited, cancelled);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to lint " + files, e);
+        }
+        var elapsed = Duration.between(started, Instant.now());
+        if (!edited && !finished && focusedIsDue()) {
+            requeue(files);
+        }
+        // Only a lint that compiled to the end says how long the next one will take
+        if (edited && finished && !cancelled.getAsBoolean()) {
+            recordLintTime(files.get(0), elapsed);
+            try {
+                linter.linted(files.get(0), cancelled);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to check dependents of " + files.get(0), e);
+            }
+        }
+        synchronized (this) {
+            if (!waiting.isEmpty()) thread.execute(this::run);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
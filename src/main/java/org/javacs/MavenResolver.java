@@ -0,0 +1,530 @@
+package org.javacs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * MavenResolver lists the dependencies of a pom.xml the way `mvn dependency:list` does, but in-process and offline,
+ * using only the poms and jars that are already in the local repository. It understands parent poms, properties,
+ * dependencyManagement, imported boms, modules, scopes, optional dependencies and exclusions. Anything it can't
+ * resolve locally, like a version range or an artifact that hasn't been downloaded, is a miss, and the caller should
+ * fall back to running maven.
+ */
+class MavenResolver {
+    private final Path repository;
+    /** Poms that have been read, with their parents merged in, but before interpolation */
+    private final Map<Path, Model> raw = new HashMap<>();
+    /** Poms with properties interpolated and dependencyManagement applied */
+    private final Map<Path, Model> effective = new HashMap<>();
+
+    MavenResolver(Path repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Find the jars, or the source jars, of every dependency of `pomXml` and its modules. Returns empty if anything
+     * needed is missing from the local repository, including a source jar that hasn't been downloaded yet, so the
+     * caller runs `mvn dependency:sources` to fetch it.
+     */
+    Optional<Set<Path>> resolve(Path pomXml, boolean sources) {
+        try {
+            var projects = new ArrayList<Model>();
+            reactor(pomXml.toAbsolutePath().normalize(), projects);
+            var modules = new HashSet<String>();
+            for (var p : projects) {
+                modules.add(p.groupId + ":" + p.artifactId);
+            }
+            var result = new HashSet<Path>();
+            for (var p : projects) {
+                resolveProject(p, modules, sources, result);
+            }
+            return Optional.of(result);
+        } catch (Miss e) {
+            LOG.info("Can't resolve " + pomXml + " offline: " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /** Thrown when something can't be resolved without maven */
+    private static class Miss extends RuntimeException {
+        Miss(String message) {
+            super(message);
+        }
+    }
+
+    private static class Dependency {
+        String groupId, artifactId, version, scope, type, classifier, systemPath;
+        boolean optional;
+        /** groupId:artifactId patterns, which may be * */
+        List<String> exclusions = new ArrayList<>();
+
+        String key() {
+            return groupId + ":" + artifactId + ":" + type() + ":" + classifier();
+        }
+
+        String type() {
+            return type == null ? "jar" : type;
+        }
+
+        String classifier() {
+            if (classifier != null) return classifier;
+            if (type().equals("test-jar")) return "tests";
+            return "";
+        }
+
+        String scope() {
+            return scope == null ? "compile" : scope;
+        }
+
+        Dependency copy() {
+            var copy = new Dependency();
+            copy.groupId = groupId;
+            copy.artifactId = artifactId;
+            copy.version = version;
+            copy.scope = scope;
+            copy.type = type;
+            copy.classifier = classifier;
+            copy.systemPath = systemPath;
+            copy.optional = optional;
+            copy.exclusions = new ArrayList<>(exclusions);
+            return copy;
+        }
+    }
+
+    private static class Model {
+        Path file;
+        String groupId, artifactId, version, parentGroupId, parentVersion;
+        final Map<String, String> properties = new HashMap<>();
+        /** Dependencies by key, parent dependencies first */
+        final Map<String, Dependency> dependencies = new LinkedHashMap<>();
+        /** dependencyManagement by key, the child's entries take precedence */
+        final Map<String, Dependency> managed = new LinkedHashMap<>();
+        final List<String> modules = new ArrayList<>();
+    }
+
+    /** Add `pomXml` and all its modules, recursively, to `projects` */
+    private void reactor(Path pomXml, List<Model> projects) {
+        if (!Files.isRegularFile(pomXml)) {
+            throw new Miss("module " + pomXml + " does not exist");
+        }
+        for (var p : projects) {
+            if (p.file.equals(pomXml)) return;
+        }
+        var model = effective(pomXml);
+        projects.add(model);
+        for (var module : model.modules) {
+            var path = pomXml.getParent().resolve(module).normalize();
+            if (Files.isDirectory(path)) {
+                path = path.resolve("pom.xml");
+            }
+            reactor(path, projects);
+        }
+    }
+
+    /** Breadth-first search of the dependencies of `project`, so the nearest version of each artifact wins */
+    private void resolveProject(Model project, Set<String> modules, boolean sources, Set<Path> result) {
+        class Node {
+            final Dependency dependency;
+            final String scope;
+            final List<String> exclusions;
+
+            Node(Dependency dependency, String scope, List<String> exclusions) {
+                this.dependency = dependency;
+                this.scope = scope;
+                this.exclusions = exclusions;
+            }
+        }
+        var queue = new ArrayDeque<Node>();
+        for (var d : project.dependencies.values()) {
+            queue.add(new Node(d, d.scope(), d.exclusions));
+        }
+        var seen = new HashSet<String>();
+        while (!queue.isEmpty()) {
+            var node = queue.remove();
+            var d = node.dependency;
+            // Other modules are compiled from source, and their dependencies are resolved as part of the reactor
+            if (modules.contains(d.groupId + ":" + d.artifactId)) continue;
+            if (!seen.add(d.key())) continue;
+            checkVersion(d);
+            if (d.scope().equals("system")) {
+                if (d.systemPath == null || !Files.exists(Paths.get(d.systemPath))) {
+                    throw new Miss("system dependency " + d.key() + " does not exist");
+                }
+                if (!sources) result.add(Paths.get(d.systemPath));
+                continue;
+            }
+            if (!d.type().equals("pom")) {
+                var jar = artifact(d.groupId, d.artifactId, d.version, d.classifier(), extension(d.type()));
+                if (!Files.exists(jar)) {
+                    throw new Miss(jar + " does not exist");
+                }
+                if (!sources) {
+                    result.add(jar);
+                } else if (d.classifier().isEmpty()) {
+                    var sourcesJar = artifact(d.groupId, d.artifactId, d.version, "sources", "jar");
+                    if (!Files.exists(sourcesJar)) {
+                        throw new Miss(sourcesJar + " does not exist");
+                    }
+                    result.add(sourcesJar);
+                }
+            }
+            var pom = effective(artifact(d.groupId, d.artifactId, d.version, "", "pom"));
+            for (var child : pom.dependencies.values()) {
+                if (child.optional || isExcluded(node.exclusions, child)) continue;
+                child = child.copy();
+                // The dependencyManagement of the project overrides the versions chosen by dependencies
+                var managed = project.managed.get(child.key());
+                if (managed != null) {
+                    if (managed.version != null) child.version = managed.version;
+                    if (managed.scope != null) child.scope = managed.scope;
+                    child.exclusions.addAll(managed.exclusions);
+                }
+                var scope = transitiveScope(node.scope, child.scope());
+                if (scope == null) continue;
+                var exclusions = new ArrayList<String>(node.exclusions);
+                exclusions.addAll(child.exclusions);
+                queue.add(new Node(child, scope, exclusions));
+            }
+        }
+    }
+
+    /** The scope of a dependency with scope `child`, of a dependency with scope `parent`, or null if it's omitted */
+    private static String transitiveScope(String parent, String child) {
+        switch (child) {
+            case "compile":
+                return parent;
+            case "runtime":
+                return parent.equals("compile") ? "runtime" : parent;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isExcluded(List<String> exclusions, Dependency d) {
+        for (var e : exclusions) {
+            var parts = e.split(":");
+            var group = parts[0];
+            var artifact = parts.length > 1 ? parts[1] : "*";
+            var groupMatches = group.equals("*") || group.equals(d.groupId);
+            var artifactMatches = artifact.equals("*") || artifact.equals(d.artifactId);
+            if (groupMatches && artifactMatches) return true;
+        }
+        return false;
+    }
+
+    private static void checkVersion(Dependency d) {
+        if (d.version == null) {
+            throw new Miss(d.key() + " has no version");
+        }
+        if (d.version.startsWith("[") || d.version.startsWith("(") || d.version.contains("${")) {
+            throw new Miss(d.key() + " has version " + d.version);
+        }
+    }
+
+    private static String extension(String type) {
+        switch (type) {
+            case "test-jar":
+            case "bundle":
+            case "maven-plugin":
+            case "ejb":
+                return "jar";
+            default:
+                return type;
+        }
+    }
+
+    private Path artifact(String groupId, String artifactId, String version, String classifier, String extension) {
+        var name = artifactId + "-" + version + (classifier.isEmpty() ? "" : "-" + classifier) + "." + extension;
+        return repository
+                .resolve(groupId.replace('.', File.separatorChar))
+                .resolve(artifactId)
+                .resolve(version)
+                .resolve(name);
+    }
+
+    /** Read `pomFile` and its parents, and interpolate properties, dependencyManagement and imported boms */
+    private Model effective(Path pomFile) {
+        var model = effective.get(pomFile);
+        if (model != null) return model;
+        var r = raw(pomFile);
+        model = new Model();
+        model.file = r.file;
+        model.groupId = r.groupId;
+        model.artifactId = r.artifactId;
+        model.version = r.version;
+        model.parentGroupId = r.parentGroupId;
+        model.parentVersion = r.parentVersion;
+        model.properties.putAll(r.properties);
+        model.modules.addAll(r.modules);
+        // Entries declared in the pom take precedence over entries imported from boms
+        var imports = new ArrayList<Dependency>();
+        for (var d : r.managed.values()) {
+            var i = interpolate(d, r);
+            if (i.scope().equals("import") && i.type().equals("pom")) {
+                imports.add(i);
+            } else {
+                model.managed.putIfAbsent(i.key(), i);
+            }
+        }
+        for (var i : imports) {
+            checkVersion(i);
+            var bom = effective(artifact(i.groupId, i.artifactId, i.version, "", "pom"));
+            for (var m : bom.managed.values()) {
+                model.managed.putIfAbsent(m.key(), m);
+            }
+        }
+        for (var d : r.dependencies.values()) {
+            var i = interpolate(d, r);
+            var managed = model.managed.get(i.key());
+            if (managed != null) {
+                if (i.version == null) i.version = managed.version;
+                if (i.scope == null) i.scope = managed.scope;
+                if (i.exclusions.isEmpty()) i.exclusions.addAll(managed.exclusions);
+            }
+            model.dependencies.put(i.key(), i);
+        }
+        effective.put(pomFile, model);
+        return model;
+    }
+
+    /** Read `pomFile` and merge in its parents */
+    private Model raw(Path pomFile) {
+        var model = raw.get(pomFile);
+        if (model != null) return model;
+        if (!Files.isRegularFile(pomFile)) {
+            throw new Miss(pomFile + " does not exist");
+        }
+        var project = parse(pomFile);
+        checkProfiles(pomFile, project);
+        model = new Model();
+        model.file = pomFile;
+        var parent = child(project, "parent");
+        if (parent != null) {
+            var p = raw(parentPom(pomFile, parent));
+            model.parentGroupId = p.groupId;
+            model.parentVersion = p.version;
+            model.groupId = p.groupId;
+            model.version = p.version;
+            model.properties.putAll(p.properties);
+            model.dependencies.putAll(p.dependencies);
+        }
+        var groupId = text(project, "groupId");
+        if (groupId != null) model.groupId = groupId;
+        model.artifactId = text(project, "artifactId");
+        var version = text(project, "version");
+        if (version != null) model.version = version;
+        for (var property : elements(child(project, "properties"))) {
+            model.properties.put(property.getTagName(), property.getTextContent().trim());
+        }
+        for (var d : children(child(project, "dependencies"), "dependency")) {
+            var dependency = dependency(d);
+            model.dependencies.put(dependency.key(), dependency);
+        }
+        for (var d : children(child(child(project, "dependencyManagement"), "dependencies"), "dependency")) {
+            var dependency = dependency(d);
+            model.managed.putIfAbsent(dependency.key(), dependency);
+        }
+        if (parent != null) {
+            var p = raw(parentPom(pomFile, parent));
+            for (var d : p.managed.values()) {
+                model.managed.putIfAbsent(d.key(), d);
+            }
+        }
+        for (var m : children(child(project, "modules"), "module")) {
+            model.modules.add(m.getTextContent().trim());
+        }
+        raw.put(pomFile, model);
+        return model;
+    }
+
+    /**
+     * Profiles can be activated by the JDK, the OS or a property, and we don't evaluate activation, so any profile that
+     * could change what a pom resolves to is a miss. This applies to parents and the poms of dependencies too.
+     */
+    private static void checkProfiles(Path pomFile, Element project) {
+        for (var profile : children(child(project, "profiles"), "profile")) {
+            for (var name : List.of("dependencies", "dependencyManagement", "modules", "parent", "properties")) {
+                if (child(profile, name) != null) {
+                    throw new Miss(pomFile + " has profiles that change its dependencies");
+                }
+            }
+        }
+    }
+
+    /** The parent pom in the workspace at relativePath, if it's the right one, or else in the local repository */
+    private Path parentPom(Path pomFile, Element parent) {
+        var groupId = text(parent, "groupId");
+        var artifactId = text(parent, "artifactId");
+        var version = text(parent, "version");
+        var relativePath = text(parent, "relativePath");
+        if (relativePath == null) relativePath = "../pom.xml";
+        if (!relativePath.isEmpty()) {
+            var local = pomFile.getParent().resolve(relativePath).normalize();
+            if (Files.isDirectory(local)) {
+                local = local.resolve("pom.xml");
+            }
+            if (Files.isRegularFile(local)) {
+                var project = parse(local);
+                var localParent = child(project, "parent");
+                var localGroupId = text(project, "groupId");
+                if (localGroupId == null && localParent != null) localGroupId = text(localParent, "groupId");
+                if (Objects.equals(localGroupId, groupId) && Objects.equals(text(project, "artifactId"), artifactId)) {
+                    return local;
+                }
+            }
+        }
+        if (groupId == null || artifactId == null || version == null) {
+            throw new Miss("incomplete parent in " + pomFile);
+        }
+        return artifact(groupId, artifactId, version, "", "pom");
+    }
+
+    private static Dependency dependency(Element d) {
+        var dependency = new Dependency();
+        dependency.groupId = text(d, "groupId");
+        dependency.artifactId = text(d, "artifactId");
+        dependency.version = text(d, "version");
+        dependency.scope = text(d, "scope");
+        dependency.type = text(d, "type");
+        dependency.classifier = text(d, "classifier");
+        dependency.systemPath = text(d, "systemPath");
+        dependency.optional = "true".equals(text(d, "optional"));
+        for (var e : children(child(d, "exclusions"), "exclusion")) {
+            dependency.exclusions.add(text(e, "groupId") + ":" + text(e, "artifactId"));
+        }
+        return dependency;
+    }
+
+    private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    private Dependency interpolate(Dependency d, Model model) {
+        var i = d.copy();
+        i.groupId = interpolate(d.groupId, model);
+        i.artifactId = interpolate(d.artifactId, model);
+        i.version = interpolate(d.version, model);
+        i.scope = interpolate(d.scope, model);
+        i.type = interpolate(d.type, model);
+        i.classifier = interpolate(d.classifier, model);
+        i.systemPath = interpolate(d.systemPath, model);
+        return i;
+    }
+
+    /** Replace ${property} references in `value`, leaving any that aren't defined */
+    private String interpolate(String value, Model model) {
+        if (value == null) return null;
+        // Properties can refer to other properties, up to a limit in case of cycles
+        for (var depth = 0; depth < 10 && value.contains("${"); depth++) {
+            var matcher = PROPERTY.matcher(value);
+            var result = new StringBuilder();
+            while (matcher.find()) {
+                var replacement = property(matcher.group(1), model);
+                if (replacement == null) replacement = matcher.group();
+                matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+            }
+            matcher.appendTail(result);
+            if (result.toString().equals(value)) break;
+            value = result.toString();
+        }
+        return value;
+    }
+
+    private String property(String name, Model model) {
+        switch (name) {
+            case "project.groupId":
+            case "pom.groupId":
+                return model.groupId;
+            case "project.artifactId":
+            case "pom.artifactId":
+                return model.artifactId;
+            case "project.version":
+            case "pom.version":
+            case "version":
+                return model.version;
+            case "project.parent.groupId":
+                return model.parentGroupId;
+            case "project.parent.version":
+                return model.parentVersion;
+            case "basedir":
+            case "project.basedir":
+                return model.file.getParent().toString();
+        }
+        if (model.properties.containsKey(name)) {
+            return model.properties.get(name);
+        }
+        if (name.startsWith("env.")) {
+            return System.getenv(name.substring("env.".length()));
+        }
+        return System.getProperty(name);
+    }
+
+    /**
+     * The `<localRepository>` set in `settingsXml`, or null if it doesn't set one. Only a direct child of `<settings>`
+     * counts, so the example in the comments of the stock settings.xml is ignored.
+     */
+    static String localRepository(Path settingsXml) {
+        if (!Files.isRegularFile(settingsXml)) return null;
+        try {
+            var path = text(parse(settingsXml), "localRepository");
+            if (path == null || path.isEmpty()) return null;
+            return path.replace("${user.home}", System.getProperty("user.home"));
+        } catch (Miss e) {
+            LOG.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    /** The root element of `pomFile` */
+    private static Element parse(Path pomFile) {
+        try {
+            var factory = DocumentBuilderFactory.newInstance();
+            factory.setExpandEntityReferences(false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            return factory.newDocumentBuilder().parse(pomFile.toFile()).getDocumentElement();
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new Miss("failed to parse " + pomFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Element child(Element parent, String name) {
+        for (var e : elements(parent)) {
+            if (e.getTagName().equals(name)) return e;
+        }
+        return null;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        var list = new ArrayList<Element>();
+        for (var e : elements(parent)) {
+            if (e.getTagName().equals(name)) list.add(e);
+        }
+        return list;
+    }
+
+    private static List<Element> elements(Element parent) {
+        if (parent == null) return List.of();
+        var list = new ArrayList<Element>();
+        for (var n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) list.add((Element) n);
+        }
+        return list;
+    }
+
+    private static String text(Element parent, String name) {
+        var e = child(parent, name);
+        if (e == null) return null;
+        return e.getTextContent().trim();
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
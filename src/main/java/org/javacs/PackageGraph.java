@@ -0,0 +1,252 @@
+package org.javacs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * PackageGraph records which source packages import which other source packages, so find-references and renames can
+ * skip files in packages that have no way to see the class they're looking for.
+ *
+ * <p>Each file is summarized by its package and the names it imports from, which are read from its import
+ * statements: `a.b` for `import a.b.C` or `import a.b.*`. An import of a nested class `a.b.C.D`, or a static import
+ * `import static a.b.C.m`, is recorded as `a.b.C`, and is treated as an import of package `a.b` when the graph is
+ * queried. Fully-qualified names like `a.b.C.m()` don't need an import at all, so callers that prune with the graph
+ * also have to keep files that mention the package by name. The summaries are saved to disk, so on the
+ * next start only files that changed in the meantime need to be read again.
+ */
+class PackageGraph {
+    private static class Entry {
+        final long modified;
+        final String packageName;
+        final String[] imports;
+
+        Entry(long modified, String packageName, String[] imports) {
+            this.modified = modified;
+            this.packageName = packageName;
+            this.imports = imports;
+        }
+    }
+
+    private final Map<Path, Entry> files = new HashMap<>();
+    /** importers[p][q] is the number of files in package q that import from p, which is a package or a class */
+    private final TreeMap<String, Map<String, Integer>> importers = new TreeMap<>();
+    /** Files that have changed since they were last read */
+    private final Set<Path> dirty = new HashSet<>();
+
+    private boolean loaded;
+
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /** Mark `file` as changed, so it will be read again before the next lookup */
+    synchronized void invalidate(Path file) {
+        if (!loaded) return;
+        dirty.add(file);
+    }
+
+    /** Forget everything about `file`, which has been deleted */
+    synchronized void remove(Path file) {
+        if (!loaded) return;
+        dirty.remove(file);
+        unpost(file);
+    }
+
+    /**
+     * The packages that can refer to classes in `packageName` through some chain of imports, including `packageName`
+     * itself. A member of a class can be used from a file that never imports it, for example `a.b().c()`, but the
+     * classes along the way have to come from packages that do.
+     */
+    synchronized Set<String> reachableFrom(String packageName) {
+        refresh();
+        var found = new HashSet<String>();
+        found.add(packageName);
+        var next = new ArrayDeque<String>();
+        next.add(packageName);
+        while (!next.isEmpty()) {
+            var p = next.remove();
+            for (var q : directImporters(p)) {
+                if (found.add(q)) next.add(q);
+            }
+        }
+        return found;
+    }
+
+    /** The packages whose files import `packageName`, including `packageName` itself */
+    synchronized Set<String> importersOf(String packageName) {
+        refresh();
+        var found = directImporters(packageName);
+        found.add(packageName);
+        return found;
+    }
+
+    private Set<String> directImporters(String packageName) {
+        var found = new HashSet<String>(importers.getOrDefault(packageName, Map.of()).keySet());
+        // Imports of nested classes `a.b.C.D` are recorded under `a.b.C`, which is a class in package `a.b`
+        for (var e : importers.subMap(packageName + ".", packageName + "/").entrySet()) {
+            var name = e.getKey();
+            var isClass = FileStore.list(name).isEmpty() && packageName.equals(sourcePackage(name));
+            if (isClass) found.addAll(e.getValue().keySet());
+        }
+        return found;
+    }
+
+    /**
+     * Load the graph from `cacheFile`, keeping only the entries that are still up-to-date. Any file in `sources` that
+     * is missing or out-of-date will be read before the next lookup.
+     */
+    synchronized void load(Path cacheFile, Collection<Path> sources) {
+        var stored = read(cacheFile);
+        for (var file : sources) {
+            var entry = stored.get(file);
+            if (entry != null && entry.modified == FileStore.modified(file).toEpochMilli()) {
+                post(file, entry);
+            } else {
+                dirty.add(file);
+            }
+        }
+        LOG.info(
+                String.format(
+                        "Loaded %d up-to-date files from package graph %s, %d need to be read",
+                        files.size(), cacheFile, dirty.size()));
+        loaded = true;
+    }
+
+    /** Read every file that has changed since the last refresh, returns the number of files read. */
+    synchronized int refresh() {
+        if (dirty.isEmpty()) return 0;
+        var started = Instant.now();
+        var count = dirty.size();
+        for (var file : dirty) {
+            unpost(file);
+            if (!FileStore.contains(file)) continue;
+            post(file, summarize(file));
+        }
+        dirty.clear();
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("Read imports of %d files into package graph in %d ms", count, elapsed));
+        return count;
+    }
+
+    private static Entry summarize(Path file) {
+        var modified = FileStore.modified(file).toEpochMilli();
+        var packageName = FileStore.packageName(file);
+        var imports = new TreeSet<String>();
+        for (var i : JavaCompilerService.readImports(file)) {
+            var imported = StringSearch.mostName(i);
+            if (!imported.equals(packageName)) {
+                imports.add(imported);
+            }
+        }
+        imports.addAll(staticImports(file));
+        return new Entry(modified, packageName, imports.toArray(String[]::new));
+    }
+
+    private static final Pattern IMPORT_STATIC = Pattern.compile("^import +static +([\\w.]+)\\.(?:\\w+|\\*) *;");
+
+    /** The classes that `file` imports members of, `a.b.C` for `import static a.b.C.m` or `import static a.b.C.*` */
+    private static List<String> staticImports(Path file) {
+        var list = new ArrayList<String>();
+        try (var lines = FileStore.lines(file)) {
+            for (var line = lines.readLine(); line != null; line = lines.readLine()) {
+                // Stop at the first class declaration, like JavaCompilerService.readImports
+                if (line.contains("class")) break;
+                var matcher = IMPORT_STATIC.matcher(line);
+                if (matcher.matches()) {
+                    list.add(matcher.group(1));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return list;
+    }
+
+    /** The longest prefix of `name` that is a source package, or null if there isn't one */
+    private static String sourcePackage(String name) {
+        while (!name.isEmpty()) {
+            if (!FileStore.list(name).isEmpty()) return name;
+            name = StringSearch.mostName(name);
+        }
+        return null;
+    }
+
+    private void post(Path file, Entry entry) {
+        files.put(file, entry);
+        for (var p : entry.imports) {
+            importers.computeIfAbsent(p, __ -> new HashMap<>()).merge(entry.packageName, 1, Integer::sum);
+        }
+    }
+
+    private void unpost(Path file) {
+        var entry = files.remove(file);
+        if (entry == null) return;
+        for (var p : entry.imports) {
+            var counts = importers.get(p);
+            if (counts == null) continue;
+            counts.computeIfPresent(entry.packageName, (__, n) -> n == 1 ? null : n - 1);
+            if (counts.isEmpty()) importers.remove(p);
+        }
+    }
+
+    private static final int MAGIC = 0x4a504b47, VERSION = 2;
+
+    /** Write every up-to-date entry to `cacheFile`, to be reloaded on the next start. */
+    synchronized void save(Path cacheFile) {
+        try {
+            CacheDir.write(
+                    cacheFile,
+                    MAGIC,
+                    VERSION,
+                    out -> {
+                        var clean = new ArrayList<Path>();
+                        for (var file : files.keySet()) {
+                            if (!dirty.contains(file)) clean.add(file);
+                        }
+                        out.writeInt(clean.size());
+                        for (var file : clean) {
+                            var entry = files.get(file);
+                            out.writeUTF(file.toString());
+                            out.writeLong(entry.modified);
+                            out.writeUTF(entry.packageName);
+                            out.writeInt(entry.imports.length);
+                            for (var i : entry.imports) {
+                                out.writeUTF(i);
+                            }
+                        }
+                    });
+            LOG.info(String.format("Saved %d files to package graph %s", files.size(), cacheFile));
+        } catch (IOException e) {
+            LOG.warning("Failed to save package graph " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Map<Path, Entry> read(Path cacheFile) {
+        var result = new HashMap<Path, Entry>();
+        if (!Files.exists(cacheFile)) return result;
+        try (var in = CacheDir.read(cacheFile, MAGIC, VERSION)) {
+            var fileCount = in.readInt();
+            for (var i = 0; i < fileCount; i++) {
+                var file = Paths.get(in.readUTF());
+                var modified = in.readLong();
+                var packageName = in.readUTF();
+                var imports = new String[in.readInt()];
+                for (var j = 0; j < imports.length; j++) {
+                    imports[j] = in.readUTF();
+                }
+                result.put(file, new Entry(modified, packageName, imports));
+            }
+        } catch (IOException e) {
+            LOG.warning("Failed to read package graph " + cacheFile + ": " + e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
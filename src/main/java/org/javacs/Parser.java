@@ -11,6 +11,7 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.lang.model.element.*;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import org.javacs.lsp.*;
 
@@ -18,10 +19,17 @@ class Parser {
     private static final JavaCompiler COMPILER = ServiceLoader.load(JavaCompiler.class).iterator().next();
     private static final SourceFileManager FILE_MANAGER = new SourceFileManager();
 
+    /**
+     * File managers for parses that aren't cached, one per thread, so they don't have to wait for the lock on
+     * Parser.class that guards FILE_MANAGER.
+     */
+    private static final ThreadLocal<SourceFileManager> UNCACHED_FILE_MANAGER =
+            ThreadLocal.withInitial(SourceFileManager::new);
+
     /** Create a task that compiles a single file */
-    private static JavacTask singleFileTask(JavaFileObject file) {
+    private static JavacTask singleFileTask(JavaFileObject file, JavaFileManager fileManager) {
         return (JavacTask)
-                COMPILER.getTask(null, FILE_MANAGER, Parser::ignoreError, List.of(), List.of(), List.of(file));
+                COMPILER.getTask(null, fileManager, Parser::ignoreError, List.of(), List.of(), List.of(file));
     }
 
     final JavaFileObject file;
@@ -31,13 +39,17 @@ class Parser {
     final Trees trees;
 
     private Parser(JavaFileObject file) {
+        this(file, FILE_MANAGER);
+    }
+
+    private Parser(JavaFileObject file, JavaFileManager fileManager) {
         this.file = file;
         try {
             this.contents = file.getCharContent(false).toString();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        this.task = singleFileTask(file);
+        this.task = singleFileTask(file, fileManager);
         try {
             this.root = task.parse().iterator().next();
         } catch (IOException e) {
@@ -50,28 +62,110 @@ class Parser {
         return parseJavaFileObject(new SourceFileObject(file));
     }
 
-    private static Parser cachedParse;
-    private static long cachedModified = -1;
+    /**
+     * The most parses to keep, and the most characters of source they can hold together. Each parse also holds on to
+     * the javac Context of its task, with its own symbol table and name table, which costs much more than the source
+     * itself, so only a few recent parses are kept.
+     */
+    private static final int MAX_PARSES = 8, MAX_PARSE_CHARS = 2_000_000;
+
+    /** Recent parses, least recently used first, keyed by the file and its version. Guarded by Parser.class. */
+    private static final LinkedHashMap<String, Parser> cachedParses = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static int cachedChars;
+    private static long hits, misses;
+
+    /**
+     * Identifies one version of `file`. An open document is identified by its LSP version, plus the time it was last
+     * opened or edited, because versions start over when a document is reopened. Any other file is identified by its
+     * modified time.
+     */
+    private static String parseKey(JavaFileObject file) {
+        var key = file.toUri() + "@" + file.getLastModified();
+        if (file instanceof SourceFileObject) {
+            var source = (SourceFileObject) file;
+            var version = FileStore.version(source.path);
+            if (version != -1) {
+                key += "v" + version;
+            }
+        }
+        return key;
+    }
+
+    private static void loadParse(String key, Parser parse) {
+        var old = cachedParses.put(key, parse);
+        if (old != null) cachedChars -= old.contents.length();
+        cachedChars += parse.contents.length();
+        // Older versions of this file will never be used again
+        var uri = parse.file.toUri() + "@";
+        var it = cachedParses.entrySet().iterator();
+        while (it.hasNext()) {
+            var e = it.next();
+            if (e.getKey().startsWith(uri) && e.getValue() != parse) {
+                cachedChars -= e.getValue().contents.length();
+                it.remove();
+            }
+        }
+        // Evict the least recently used parses, but always keep the one we just made
+        it = cachedParses.entrySet().iterator();
+        while (cachedParses.size() > 1 && (cachedParses.size() > MAX_PARSES || cachedChars > MAX_PARSE_CHARS)) {
+            var e = it.next();
+            cachedChars -= e.getValue().contents.length();
+            it.remove();
+        }
+    }
+
+    /**
+     * A SourceFileObject with its own text, like a file with its method bodies erased, has the same URI and modified
+     * time as the real file, so it can't be told apart by parseKey. These are never cached.
+     */
+    private static boolean hasExplicitContents(JavaFileObject file) {
+        return file instanceof SourceFileObject && ((SourceFileObject) file).contents != null;
+    }
 
-    private static boolean needsParse(JavaFileObject file) {
-        if (cachedParse == null) return true;
-        if (!cachedParse.file.equals(file)) return true;
-        if (file.getLastModified() > cachedModified) return true;
-        return false;
+    // Synchronized because the cache and FILE_MANAGER are shared by every thread
+    static synchronized Parser parseJavaFileObject(JavaFileObject file) {
+        if (hasExplicitContents(file)) {
+            return new Parser(file);
+        }
+        var key = parseKey(file);
+        var cached = cachedParses.get(key);
+        if (cached != null) {
+            hits++;
+            LOG.info(String.format("...using cached parse (%.0f%% hits)", 100.0 * hits / (hits + misses)));
+            return cached;
+        }
+        misses++;
+        var parse = new Parser(file);
+        loadParse(key, parse);
+        return parse;
     }
 
-    private static void loadParse(JavaFileObject file) {
-        cachedParse = new Parser(file);
-        cachedModified = file.getLastModified();
+    /**
+     * The contents of `file` with the inside of every method body erased by {@link EraseMethodBodies}, so everything
+     * else stays at the same position. The parse isn't cached, because it's only needed once per version of the file,
+     * so it doesn't need the lock on Parser.class either.
+     */
+    static String eraseMethodBodies(Path file) {
+        var parse = new Parser(new SourceFileObject(file), UNCACHED_FILE_MANAGER.get());
+        return new EraseMethodBodies(parse.task, parse.root, parse.contents).erase();
     }
 
-    static Parser parseJavaFileObject(JavaFileObject file) {
-        if (needsParse(file)) {
-            loadParse(file);
-        } else {
-            LOG.info("...using cached parse");
+    /**
+     * The top-level classes in `file` that aren't named after it. Like eraseMethodBodies, the parse isn't cached,
+     * because these are indexed once per version of each file.
+     */
+    static List<String> secondaryClasses(Path file) {
+        var parse = new Parser(new SourceFileObject(file), UNCACHED_FILE_MANAGER.get());
+        var fileName = file.getFileName().toString();
+        var className = fileName.substring(0, fileName.length() - ".java".length());
+        var result = new ArrayList<String>();
+        for (var name : parse.packagePrivateClasses()) {
+            if (!name.contentEquals(className)) {
+                result.add(name.toString());
+            }
         }
-        return cachedParse;
+        return result;
     }
 
     Set<Name> packagePrivateClasses() {
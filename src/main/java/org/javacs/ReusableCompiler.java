@@ -46,6 +46,7 @@ import com.sun.tools.javac.util.Log;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
@@ -80,16 +81,33 @@ class ReusableCompiler {
     private static final Logger LOG = Logger.getLogger("main");
     private static final JavacTool systemProvider = JavacTool.create();
 
-    private List<String> currentOptions = new ArrayList<>();
-    private ReusableContext currentContext;
-    private boolean checkedOut;
+    /** The most contexts this pool will create. Each one has its own symbol table, so they use a lot of memory. */
+    private final int size;
+    /** Creates a file manager for each new context, because file managers can't be shared between threads */
+    private final Supplier<? extends JavaFileManager> newFileManager;
+    /** Contexts that aren't checked out by any Borrow, ready to be reused by the next task with the same options */
+    private final List<ReusableContext> idle = new ArrayList<>();
+    /** The number of contexts that exist, whether they are idle or checked out */
+    private int live;
+
+    ReusableCompiler(int size, Supplier<? extends JavaFileManager> newFileManager) {
+        if (size < 1) throw new IllegalArgumentException("size " + size + " < 1");
+        this.size = size;
+        this.newFileManager = newFileManager;
+    }
+
+    /** The most tasks that can be checked out at the same time */
+    int size() {
+        return size;
+    }
 
     /**
      * Creates a new task as if by {@link javax.tools.JavaCompiler#getTask} and runs the provided worker with it. The
      * task is only valid while the worker is running. The internal structures may be reused from some previous
-     * compilation.
+     * compilation. If all {@link #size()} contexts are checked out, waits until one is returned.
+     *
+     * <p>Each context has its own file manager, so tasks from different contexts can run on different threads.
      *
-     * @param fileManager a file manager; if {@code null} use the compiler's standard filemanager
      * @param diagnosticListener a diagnostic listener; if {@code null} use the compiler's default method for reporting
      *     diagnostics
      * @param options compiler options, {@code null} means no options
@@ -102,38 +120,67 @@ class ReusableCompiler {
      *     of other kind than {@linkplain JavaFileObject.Kind#SOURCE source}
      */
     Borrow getTask(
-            JavaFileManager fileManager,
             DiagnosticListener<? super JavaFileObject> diagnosticListener,
             Iterable<String> options,
             Iterable<String> classes,
             Iterable<? extends JavaFileObject> compilationUnits) {
-        if (checkedOut) {
-            throw new RuntimeException("Compiler is already in-use!");
-        }
-        checkedOut = true;
         List<String> opts =
                 StreamSupport.stream(options.spliterator(), false).collect(Collectors.toCollection(ArrayList::new));
-        if (!opts.equals(currentOptions)) {
-            LOG.warning(String.format("Options changed from %s to %s, creating new compiler", options, opts));
-            currentOptions = opts;
-            currentContext = new ReusableContext(opts);
-        }
+        var context = checkOut(opts);
         JavacTaskImpl task =
                 (JavacTaskImpl)
                         systemProvider.getTask(
-                                null, fileManager, diagnosticListener, opts, classes, compilationUnits, currentContext);
+                                null,
+                                context.fileManager,
+                                diagnosticListener,
+                                opts,
+                                classes,
+                                compilationUnits,
+                                context);
+
+        task.addTaskListener(context);
+
+        return new Borrow(task, context);
+    }
 
-        task.addTaskListener(currentContext);
+    private synchronized ReusableContext checkOut(List<String> opts) {
+        while (true) {
+            for (var i = 0; i < idle.size(); i++) {
+                if (idle.get(i).arguments.equals(opts)) {
+                    return idle.remove(i);
+                }
+            }
+            if (live >= size && !idle.isEmpty()) {
+                // Options changed, make room by throwing away a context that will never be reused
+                var previous = idle.remove(0).arguments;
+                LOG.warning(String.format("Options changed from %s to %s, creating new compiler", previous, opts));
+                live--;
+            }
+            if (live < size) {
+                live++;
+                return new ReusableContext(opts, newFileManager.get());
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
 
-        return new Borrow(task, currentContext);
+    private synchronized void checkIn(ReusableContext context) {
+        idle.add(context);
+        notifyAll();
     }
 
     class Borrow implements AutoCloseable {
         final JavacTask task;
+        final ReusableContext context;
         boolean closed;
 
-        Borrow(JavacTask task, ReusableContext ctx) {
+        Borrow(JavacTask task, ReusableContext context) {
             this.task = task;
+            this.context = context;
         }
 
         @Override
@@ -141,7 +188,7 @@ class ReusableCompiler {
             if (closed) return;
             // not returning the context to the pool if task crashes with an exception
             // the task/context may be in a broken state
-            currentContext.clear();
+            context.clear();
             try {
                 var method = JavacTaskImpl.class.getDeclaredMethod("cleanup");
                 method.setAccessible(true);
@@ -149,18 +196,20 @@ class ReusableCompiler {
             } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
                 throw new RuntimeException(e);
             }
-            checkedOut = false;
+            checkIn(context);
             closed = true;
         }
     }
 
     static class ReusableContext extends Context implements TaskListener {
 
-        List<String> arguments;
+        final List<String> arguments;
+        final JavaFileManager fileManager;
 
-        ReusableContext(List<String> arguments) {
+        ReusableContext(List<String> arguments, JavaFileManager fileManager) {
             super();
             this.arguments = arguments;
+            this.fileManager = fileManager;
             put(Log.logKey, ReusableLog.factory);
             put(JavaCompiler.compilerKey, ReusableJavaCompiler.factory);
         }
@@ -0,0 +1,216 @@
+package org.javacs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rope is an immutable text made of a balanced tree of small chunks, so an edit to a large document only copies the
+ * chunks along one path instead of the whole text. Each node also counts the newlines beneath it, which makes
+ * converting a line/character position to an offset a walk down one path of the tree.
+ */
+class Rope implements CharSequence {
+    /** Chunks are split to at most this many chars, and small neighboring chunks are merged up to this size */
+    private static final int CHUNK = 1024;
+
+    private static final class Node {
+        /** Text of a leaf, or null for an internal node */
+        final String chunk;
+
+        final Node left, right;
+        final int length, newlines, depth;
+
+        Node(String chunk) {
+            this.chunk = chunk;
+            this.left = null;
+            this.right = null;
+            this.length = chunk.length();
+            this.newlines = countNewlines(chunk);
+            this.depth = 0;
+        }
+
+        Node(Node left, Node right) {
+            this.chunk = null;
+            this.left = left;
+            this.right = right;
+            this.length = left.length + right.length;
+            this.newlines = left.newlines + right.newlines;
+            this.depth = Math.max(left.depth, right.depth) + 1;
+        }
+    }
+
+    private static final Node EMPTY = new Node("");
+
+    private final Node root;
+    /** The flattened text, computed the first time someone asks for it */
+    private volatile String text;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    static Rope of(String text) {
+        var chunks = new ArrayList<Node>();
+        for (var start = 0; start < text.length(); start += CHUNK) {
+            chunks.add(new Node(text.substring(start, Math.min(start + CHUNK, text.length()))));
+        }
+        var rope = new Rope(balanced(chunks, 0, chunks.size()));
+        rope.text = text;
+        return rope;
+    }
+
+    /** Replace the chars in [start, end) with `replacement` */
+    Rope replace(int start, int end, String replacement) {
+        if (start < 0 || end < start || end > root.length) {
+            throw new IndexOutOfBoundsException(String.format("[%d, %d) of %d", start, end, root.length));
+        }
+        var before = slice(root, 0, start);
+        var after = slice(root, end, root.length);
+        var inserted = replacement.length() <= CHUNK ? new Node(replacement) : Rope.of(replacement).root;
+        var result = concat(concat(before, inserted), after);
+        if (result.depth > maxDepth(result.length)) {
+            result = rebalance(result);
+        }
+        return new Rope(result);
+    }
+
+    /** Convert a 0-based line and character to an offset, clamped to the end of the text */
+    int offset(int line, int character) {
+        var lineStart = line <= 0 ? 0 : lineStart(root, line);
+        return Math.min(lineStart + character, root.length);
+    }
+
+    int lineCount() {
+        return root.newlines + 1;
+    }
+
+    @Override
+    public int length() {
+        return root.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= root.length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        var node = root;
+        while (node.chunk == null) {
+            if (index < node.left.length) {
+                node = node.left;
+            } else {
+                index -= node.left.length;
+                node = node.right;
+            }
+        }
+        return node.chunk.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        var result = text;
+        if (result == null) {
+            var buffer = new StringBuilder(root.length);
+            append(root, buffer);
+            result = buffer.toString();
+            text = result;
+        }
+        return result;
+    }
+
+    private static void append(Node node, StringBuilder buffer) {
+        if (node.chunk != null) {
+            buffer.append(node.chunk);
+            return;
+        }
+        append(node.left, buffer);
+        append(node.right, buffer);
+    }
+
+    /** The offset just after the `line`th newline in `node`, or the end of `node` if it has fewer lines */
+    private static int lineStart(Node node, int line) {
+        if (line > node.newlines) return node.length;
+        var offset = 0;
+        while (node.chunk == null) {
+            if (line <= node.left.newlines) {
+                node = node.left;
+            } else {
+                line -= node.left.newlines;
+                offset += node.left.length;
+                node = node.right;
+            }
+        }
+        for (var i = 0; i < node.chunk.length(); i++) {
+            if (node.chunk.charAt(i) == '\n' && --line == 0) {
+                return offset + i + 1;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private static Node slice(Node node, int from, int to) {
+        if (from == to) return EMPTY;
+        if (from == 0 && to == node.length) return node;
+        if (node.chunk != null) return new Node(node.chunk.substring(from, to));
+        var split = node.left.length;
+        if (to <= split) return slice(node.left, from, to);
+        if (from >= split) return slice(node.right, from - split, to - split);
+        return concat(slice(node.left, from, split), slice(node.right, 0, to - split));
+    }
+
+    private static Node concat(Node left, Node right) {
+        if (left.length == 0) return right;
+        if (right.length == 0) return left;
+        // Merge small edits into their neighbor, so typing doesn't leave behind a chunk per keystroke
+        if (left.chunk != null && right.chunk != null && left.length + right.length <= CHUNK) {
+            return new Node(left.chunk + right.chunk);
+        }
+        return new Node(left, right);
+    }
+
+    /** A tree of n chars is allowed to get this deep before it is rebalanced */
+    private static int maxDepth(int length) {
+        var chunks = Math.max(1, length / CHUNK);
+        return 2 * (32 - Integer.numberOfLeadingZeros(chunks)) + 8;
+    }
+
+    private static Node rebalance(Node node) {
+        var chunks = new ArrayList<Node>();
+        collect(node, chunks);
+        return balanced(chunks, 0, chunks.size());
+    }
+
+    /** Collect the leaves of `node` in order, merging neighbors that fit in one chunk */
+    private static void collect(Node node, List<Node> chunks) {
+        if (node.chunk == null) {
+            collect(node.left, chunks);
+            collect(node.right, chunks);
+            return;
+        }
+        var last = chunks.size() - 1;
+        if (last >= 0 && chunks.get(last).length + node.length <= CHUNK) {
+            chunks.set(last, new Node(chunks.get(last).chunk + node.chunk));
+        } else {
+            chunks.add(node);
+        }
+    }
+
+    private static Node balanced(List<Node> chunks, int from, int to) {
+        if (from == to) return EMPTY;
+        if (to - from == 1) return chunks.get(from);
+        var mid = (from + to) >>> 1;
+        return new Node(balanced(chunks, from, mid), balanced(chunks, mid, to));
+    }
+
+    private static int countNewlines(String chunk) {
+        var count = 0;
+        for (var i = 0; i < chunk.length(); i++) {
+            if (chunk.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+}
@@ -2,17 +2,17 @@ package org.javacs;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
 import java.util.logging.Logger;
-import org.javacs.guava.ClassPath;
+import java.util.stream.Collectors;
 
 class ScanClassPath {
 
@@ -111,7 +111,98 @@ class ScanClassPath {
         "jdk.zipfs",
     };
 
+    /** The top-level classes of the running JDK, shared by every JavaCompilerService */
+    private static volatile Set<String> jdkClasses;
+
     static Set<String> jdkTopLevelClasses() {
+        var classes = jdkClasses;
+        if (classes != null) return classes;
+        synchronized (ScanClassPath.class) {
+            if (jdkClasses == null) {
+                jdkClasses = loadJdkTopLevelClasses();
+            }
+            return jdkClasses;
+        }
+    }
+
+    /** Load the catalog of JDK classes from the cache, or scan the JDK and cache the result */
+    private static Set<String> loadJdkTopLevelClasses() {
+        var catalog = jdkCatalogFile();
+        if (Files.exists(catalog)) {
+            try {
+                var classes = readCatalog(catalog);
+                LOG.info(String.format("Loaded %d classes in the java platform from %s", classes.size(), catalog));
+                return classes;
+            } catch (IOException e) {
+                LOG.warning("Failed to read " + catalog + ": " + e.getMessage());
+            }
+        }
+        var classes = scanJdkTopLevelClasses();
+        try {
+            writeCatalog(catalog, classes);
+        } catch (IOException e) {
+            LOG.warning("Failed to save " + catalog + ": " + e.getMessage());
+        }
+        return new SortedNames(sorted(classes));
+    }
+
+    /** Each JDK gets its own catalog, named after its location and version */
+    private static Path jdkCatalogFile() {
+        var jdk = System.getProperty("java.home") + "\n" + Runtime.version();
+        return CacheDir.root().resolve("jdk").resolve("classes-" + CacheDir.hash(jdk) + ".txt");
+    }
+
+    /** Write `classes` to `catalog` as sorted, newline-separated UTF-8 */
+    static void writeCatalog(Path catalog, Collection<String> classes) throws IOException {
+        // Every server that uses this JDK shares the catalog, so each writes its own temp file
+        Files.createDirectories(catalog.getParent());
+        var tmp = Files.createTempFile(catalog.getParent(), catalog.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, Arrays.asList(sorted(classes)), StandardCharsets.UTF_8);
+            Files.move(tmp, catalog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Read a catalog written by writeCatalog */
+    static Set<String> readCatalog(Path catalog) throws IOException {
+        var names = Files.readAllLines(catalog, StandardCharsets.UTF_8);
+        names.removeIf(String::isEmpty);
+        return new SortedNames(names.toArray(String[]::new));
+    }
+
+    private static String[] sorted(Collection<String> classes) {
+        var array = classes.toArray(String[]::new);
+        Arrays.sort(array);
+        return array;
+    }
+
+    /** An immutable set of class names, stored as one sorted array */
+    private static class SortedNames extends AbstractSet<String> {
+        private final String[] names;
+
+        SortedNames(String[] names) {
+            this.names = names;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(names, o) >= 0;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return Arrays.asList(names).iterator();
+        }
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+    }
+
+    private static Set<String> scanJdkTopLevelClasses() {
         LOG.info("Searching for top-level classes in the JDK");
 
         var classes = new HashSet<String>();
@@ -142,31 +233,28 @@ class ScanClassPath {
     static Set<String> classPathTopLevelClasses(Set<Path> classPath) {
         LOG.info(String.format("Searching for top-level classes in %d classpath locations", classPath.size()));
 
-        var urls = classPath.stream().map(ScanClassPath::toUrl).toArray(URL[]::new);
-        var classLoader = new URLClassLoader(urls, null);
-        ClassPath scanner;
-        try {
-            scanner = ClassPath.from(classLoader);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        var started = Instant.now();
+        var seen = new HashSet<Path>();
         var classes = new HashSet<String>();
-        for (var c : scanner.getTopLevelClasses()) {
-            classes.add(c.getName());
+        var pending = new ArrayList<Path>(classPath);
+        // Index jars in parallel, then do the same for any jars named by their manifests
+        while (!pending.isEmpty()) {
+            pending.removeIf(entry -> !seen.add(entry.toAbsolutePath().normalize()));
+            var indexes = pending.parallelStream().map(JarIndex::of).collect(Collectors.toList());
+            pending = new ArrayList<>();
+            for (var index : indexes) {
+                for (var c : index.classes) {
+                    if (c.isPublic) classes.add(c.className);
+                }
+                pending.addAll(index.manifestClassPath);
+            }
         }
 
-        LOG.info(String.format("Found %d classes in classpath", classes.size()));
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("Found %d classes in classpath in %d ms", classes.size(), elapsed));
 
         return classes;
     }
 
-    private static URL toUrl(Path p) {
-        try {
-            return p.toUri().toURL();
-        } catch (MalformedURLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private static final Logger LOG = Logger.getLogger("main");
 }
@@ -0,0 +1,75 @@
+package org.javacs;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * SecondaryClassIndex remembers the top-level classes that are declared in a source file with a different name, like
+ * `class Helper` at the bottom of Main.java. javac finds source classes by looking for Helper.java on the source path,
+ * so it can't find these unless the file that declares them is added to the batch.
+ *
+ * <p>Packages are indexed the first time they're needed. Each file is checked again when it's modified. Files are
+ * only parsed if they contain an unindented declaration of another class, so a secondary class declared on an indented
+ * line will be missed, and found the slow way by {@link CompileBatch#needsAdditionalSources}.
+ */
+class SecondaryClassIndex {
+    private static class Entry {
+        final Instant modified;
+        final List<String> classes;
+
+        Entry(Instant modified, List<String> classes) {
+            this.modified = modified;
+            this.classes = classes;
+        }
+    }
+
+    private final Map<Path, Entry> files = new HashMap<>();
+
+    /** The secondary classes declared in `packageName`, by simple name, and the files that declare them */
+    synchronized Map<String, Path> classesIn(String packageName) {
+        var result = new TreeMap<String, Path>();
+        for (var file : FileStore.list(packageName)) {
+            for (var c : classes(file)) {
+                result.putIfAbsent(c, file);
+            }
+        }
+        return result;
+    }
+
+    /** Forget everything about `file`, which has been deleted */
+    synchronized void remove(Path file) {
+        files.remove(file);
+    }
+
+    private List<String> classes(Path file) {
+        var modified = FileStore.modified(file);
+        var entry = files.get(file);
+        if (entry == null || !entry.modified.equals(modified)) {
+            entry = new Entry(modified, scan(file));
+            files.put(file, entry);
+        }
+        return entry.classes;
+    }
+
+    /** A non-public top-level declaration, which is almost always unindented */
+    private static final Pattern DECLARATION =
+            Pattern.compile(
+                    "^(?:(?:abstract|final|static|strictfp)\\s+)*(?:class|interface|enum|@interface)\\s+(\\w+)",
+                    Pattern.MULTILINE);
+
+    private static List<String> scan(Path file) {
+        // Only parse files that look like they declare another class, most files don't
+        var fileName = file.getFileName().toString();
+        var className = fileName.substring(0, fileName.length() - ".java".length());
+        var declarations = DECLARATION.matcher(FileStore.contents(file));
+        while (declarations.find()) {
+            if (!declarations.group(1).equals(className)) {
+                return Parser.secondaryClasses(file);
+            }
+        }
+        return List.of();
+    }
+
+}
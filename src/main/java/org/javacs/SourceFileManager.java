@@ -1,7 +1,6 @@
 package org.javacs;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.*;
@@ -9,8 +8,16 @@ import java.util.logging.Logger;
 import javax.tools.*;
 
 class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    /** If true, source files that aren't open are given to javac with their method bodies erased */
+    private final boolean eraseMethodBodies;
+
     SourceFileManager() {
+        this(false);
+    }
+
+    SourceFileManager(boolean eraseMethodBodies) {
         super(createDelegateFileManager());
+        this.eraseMethodBodies = eraseMethodBodies;
     }
 
     private static StandardJavaFileManager createDelegateFileManager() {
@@ -34,10 +41,50 @@ class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManage
     }
 
     private JavaFileObject asJavaFileObject(Path file) {
-        // TODO erase method bodies of files that are not open
-        return new SourceFileObject(file);
+        if (!eraseMethodBodies || FileStore.activeDocuments().contains(file)) {
+            return new SourceFileObject(file);
+        }
+        // javac only needs the signatures of files it loads from the source path, and attributing their method bodies
+        // can make it load many more files
+        return new ErasedSourceFileObject(file);
+    }
+
+    /**
+     * A closed file on the source path, with its method bodies erased. javac lists every file in a package but only
+     * reads the ones it needs, so the bodies are erased the first time the contents are read, not when it's listed.
+     */
+    private static class ErasedSourceFileObject extends SourceFileObject {
+        ErasedSourceFileObject(Path file) {
+            super(file, null, FileStore.modified(file));
+        }
+
+        private String erased() {
+            return cacheErased.get(path, null, () -> Parser.eraseMethodBodies(path));
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(erased().getBytes());
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) {
+            return new StringReader(erased());
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return erased();
+        }
+
+        @Override
+        public long getLastModified() {
+            return modified.toEpochMilli();
+        }
     }
 
+    private static final Cache<Void, String> cacheErased = new Cache<>("erasedSources");
+
     @Override
     public String inferBinaryName(Location location, JavaFileObject file) {
         if (location == StandardLocation.SOURCE_PATH) {
@@ -70,7 +117,7 @@ class SourceFileManager extends ForwardingJavaFileManager<StandardJavaFileManage
             var simpleClassName = StringSearch.lastName(className);
             for (var f : FileStore.list(packageName)) {
                 if (f.getFileName().toString().equals(simpleClassName + kind.extension)) {
-                    return new SourceFileObject(f);
+                    return asJavaFileObject(f);
                 }
             }
             // Fall through to disk in case we have .jar or .zip files on the source path
@@ -29,7 +29,8 @@ public class SourceFileObject implements JavaFileObject {
 
     @Override
     public boolean equals(Object other) {
-        if (other.getClass() != SourceFileObject.class) return false;
+        // A file with its method bodies erased is still the same file
+        if (!(other instanceof SourceFileObject)) return false;
         var that = (SourceFileObject) other;
         return this.path.equals(that.path);
     }
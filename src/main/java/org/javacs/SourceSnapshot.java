@@ -0,0 +1,117 @@
+package org.javacs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * SourceSnapshot is the list of java sources FileStore found in the workspace, with the modified time of each source
+ * and of each directory that was crawled. It is saved when a crawl finishes, so the next start can skip listing any
+ * directory whose modified time hasn't changed, and skip reading the package of any file whose modified time hasn't
+ * changed.
+ */
+class SourceSnapshot {
+    static class Source {
+        final Instant modified;
+        final String packageName;
+
+        Source(Instant modified, String packageName) {
+            this.modified = modified;
+            this.packageName = packageName;
+        }
+    }
+
+    /** directories[dir] is the modified time of dir when it was last listed */
+    final Map<Path, Instant> directories = new HashMap<>();
+
+    final Map<Path, Source> sources = new HashMap<>();
+
+    /** children[dir] is the subdirectories and sources directly inside dir */
+    private final Map<Path, List<Path>> children = new HashMap<>();
+
+    List<Path> children(Path dir) {
+        return children.getOrDefault(dir, List.of());
+    }
+
+    private void indexChildren() {
+        for (var dir : directories.keySet()) {
+            addChild(dir);
+        }
+        for (var file : sources.keySet()) {
+            addChild(file);
+        }
+    }
+
+    private void addChild(Path child) {
+        var parent = child.getParent();
+        if (parent != null) {
+            children.computeIfAbsent(parent, __ -> new ArrayList<>()).add(child);
+        }
+    }
+
+    private static final int MAGIC = 0x4a535243, VERSION = 1;
+
+    static SourceSnapshot read(Path snapshotFile) {
+        var snapshot = new SourceSnapshot();
+        if (!Files.exists(snapshotFile)) return snapshot;
+        try (var in = CacheDir.read(snapshotFile, MAGIC, VERSION)) {
+            var dirCount = in.readInt();
+            for (var i = 0; i < dirCount; i++) {
+                var dir = Paths.get(in.readUTF());
+                snapshot.directories.put(dir, readInstant(in));
+            }
+            var sourceCount = in.readInt();
+            for (var i = 0; i < sourceCount; i++) {
+                var file = Paths.get(in.readUTF());
+                var modified = readInstant(in);
+                snapshot.sources.put(file, new Source(modified, in.readUTF()));
+            }
+        } catch (IOException e) {
+            LOG.warning("Failed to read source snapshot " + snapshotFile + ": " + e.getMessage());
+            return new SourceSnapshot();
+        }
+        snapshot.indexChildren();
+        return snapshot;
+    }
+
+    void write(Path snapshotFile) {
+        try {
+            CacheDir.write(
+                    snapshotFile,
+                    MAGIC,
+                    VERSION,
+                    out -> {
+                        out.writeInt(directories.size());
+                        for (var dir : directories.keySet()) {
+                            out.writeUTF(dir.toString());
+                            writeInstant(out, directories.get(dir));
+                        }
+                        out.writeInt(sources.size());
+                        for (var file : sources.keySet()) {
+                            var source = sources.get(file);
+                            out.writeUTF(file.toString());
+                            writeInstant(out, source.modified);
+                            out.writeUTF(source.packageName);
+                        }
+                    });
+            LOG.info(String.format("Saved %d files to source snapshot %s", sources.size(), snapshotFile));
+        } catch (IOException e) {
+            LOG.warning("Failed to save source snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Instant readInstant(DataInput in) throws IOException {
+        var seconds = in.readLong();
+        var nanos = in.readInt();
+        return Instant.ofEpochSecond(seconds, nanos);
+    }
+
+    private static void writeInstant(DataOutput out, Instant instant) throws IOException {
+        out.writeLong(instant.getEpochSecond());
+        out.writeInt(instant.getNano());
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -196,7 +196,8 @@ public class StringSearch {
         }
     }
 
-    private static final ByteBuffer SEARCH_BUFFER = ByteBuffer.allocateDirect(1024 * 1024);
+    private static final ThreadLocal<ByteBuffer> SEARCH_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1024 * 1024));
 
     // TODO cache the progress made by searching shorter queries
     static boolean containsWordMatching(Path java, String query) {
@@ -206,12 +207,13 @@ public class StringSearch {
         }
         try (var channel = FileChannel.open(java)) {
             // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            var chars = StandardCharsets.UTF_8.decode(SEARCH_BUFFER);
+            var buffer = SEARCH_BUFFER.get();
+            var limit = Math.min((int) channel.size(), buffer.capacity());
+            buffer.position(0);
+            buffer.limit(limit);
+            channel.read(buffer);
+            buffer.position(0);
+            var chars = StandardCharsets.UTF_8.decode(buffer);
             return matchesTitleCase(chars, query);
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
@@ -229,12 +231,13 @@ public class StringSearch {
         }
         try (var channel = FileChannel.open(java)) {
             // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            return search.nextWord(SEARCH_BUFFER) != -1;
+            var buffer = SEARCH_BUFFER.get();
+            var limit = Math.min((int) channel.size(), buffer.capacity());
+            buffer.position(0);
+            buffer.limit(limit);
+            channel.read(buffer);
+            buffer.position(0);
+            return search.nextWord(buffer) != -1;
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
             return false;
@@ -251,12 +254,13 @@ public class StringSearch {
         }
         try (var channel = FileChannel.open(java)) {
             // Read up to 1 MB of data from file
-            var limit = Math.min((int) channel.size(), SEARCH_BUFFER.capacity());
-            SEARCH_BUFFER.position(0);
-            SEARCH_BUFFER.limit(limit);
-            channel.read(SEARCH_BUFFER);
-            SEARCH_BUFFER.position(0);
-            return search.next(SEARCH_BUFFER) != -1;
+            var buffer = SEARCH_BUFFER.get();
+            var limit = Math.min((int) channel.size(), buffer.capacity());
+            buffer.position(0);
+            buffer.limit(limit);
+            channel.read(buffer);
+            buffer.position(0);
+            return search.next(buffer) != -1;
         } catch (NoSuchFileException e) {
             LOG.warning(e.getMessage());
             return false;
@@ -330,24 +334,18 @@ public class StringSearch {
         }
     }
 
-    private static Cache<String, Boolean> cacheContainsClass = new Cache<>();
+    private static final Cache<String, Boolean> cacheContainsClass = new Cache<>("containsClass");
 
     private static boolean containsClass(Path file, String simpleName) {
-        if (cacheContainsClass.needs(file, simpleName)) {
-            cacheContainsClass.load(file, simpleName, containsString(file, "class " + simpleName));
-            // TODO verify this by actually parsing the file
-        }
-        return cacheContainsClass.get(file, simpleName);
+        // TODO verify this by actually parsing the file
+        return cacheContainsClass.get(file, simpleName, () -> containsString(file, "class " + simpleName));
     }
 
-    private static Cache<String, Boolean> cacheContainsInterface = new Cache<>();
+    private static final Cache<String, Boolean> cacheContainsInterface = new Cache<>("containsInterface");
 
     private static boolean containsInterface(Path file, String simpleName) {
-        if (cacheContainsInterface.needs(file, simpleName)) {
-            cacheContainsInterface.load(file, simpleName, containsString(file, "interface " + simpleName));
-            // TODO verify this by actually parsing the file
-        }
-        return cacheContainsInterface.get(file, simpleName);
+        // TODO verify this by actually parsing the file
+        return cacheContainsInterface.get(file, simpleName, () -> containsString(file, "interface " + simpleName));
     }
 
     // TODO this doesn't work for inner classes, eliminate
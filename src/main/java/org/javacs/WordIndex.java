@@ -0,0 +1,122 @@
+package org.javacs;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * WordIndex is an inverted index from each word to the source files that contain it, so find-references and renames
+ * can pick their candidate files with a lookup instead of scanning the text of every file in the workspace.
+ *
+ * <p>Words are split the same way as {@link StringSearch#nextWord}: a word is a run of letters, digits, `_` and `$`.
+ * Words that start with a digit can't be identifiers, so they aren't indexed.
+ */
+class WordIndex {
+    /** words[file] is the sorted, de-duplicated list of words in file */
+    private final Map<Path, String[]> words = new HashMap<>();
+    /** postings[word] is the set of files that contain word */
+    private final Map<String, Set<Path>> postings = new HashMap<>();
+    /** Files that have changed since they were last indexed */
+    private final Set<Path> dirty = new HashSet<>();
+
+    private boolean built;
+
+    /** Mark `file` as changed, so it will be re-indexed before the next lookup */
+    synchronized void invalidate(Path file) {
+        if (!built) return;
+        dirty.add(file);
+    }
+
+    /** Forget everything about `file`, which has been deleted */
+    synchronized void remove(Path file) {
+        if (!built) return;
+        dirty.remove(file);
+        unpost(file);
+    }
+
+    /** The source files that contain `word`, in sorted order */
+    synchronized SortedSet<Path> filesContaining(String word) {
+        refresh();
+        return new TreeSet<>(postings.getOrDefault(word, Set.of()));
+    }
+
+    /** Does `file` contain `word`? */
+    synchronized boolean contains(Path file, String word) {
+        refresh();
+        var list = words.get(file);
+        if (list == null) {
+            // Not a workspace source, just check the text
+            return words(FileStore.contents(file)).contains(word);
+        }
+        return Arrays.binarySearch(list, word) >= 0;
+    }
+
+    private void refresh() {
+        if (!built) {
+            var started = Instant.now();
+            for (var file : FileStore.all()) {
+                post(file);
+            }
+            built = true;
+            var elapsed = Duration.between(started, Instant.now()).toMillis();
+            LOG.info(String.format("Indexed %d words in %d files in %d ms", postings.size(), words.size(), elapsed));
+            return;
+        }
+        if (dirty.isEmpty()) return;
+        for (var file : dirty) {
+            unpost(file);
+            post(file);
+        }
+        dirty.clear();
+    }
+
+    private void post(Path file) {
+        var found = words(FileStore.contents(file));
+        var list = new String[found.size()];
+        var i = 0;
+        for (var word : found) {
+            // Intern so each distinct word is only stored once, no matter how many files contain it
+            word = word.intern();
+            postings.computeIfAbsent(word, __ -> new HashSet<>()).add(file);
+            list[i++] = word;
+        }
+        Arrays.sort(list);
+        words.put(file, list);
+    }
+
+    private void unpost(Path file) {
+        var list = words.remove(file);
+        if (list == null) return;
+        for (var word : list) {
+            var set = postings.get(word);
+            if (set == null) continue;
+            set.remove(file);
+            if (set.isEmpty()) postings.remove(word);
+        }
+    }
+
+    static Set<String> words(CharSequence text) {
+        var found = new HashSet<String>();
+        var start = -1;
+        for (var i = 0; i <= text.length(); i++) {
+            var isWord = i < text.length() && isWordChar(text.charAt(i));
+            if (isWord && start == -1) {
+                start = i;
+            } else if (!isWord && start != -1) {
+                if (!Character.isDigit(text.charAt(start))) {
+                    found.add(text.subSequence(start, i).toString());
+                }
+                start = -1;
+            }
+        }
+        return found;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isAlphabetic(c) || Character.isDigit(c) || c == '$' || c == '_';
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
@@ -3,98 +3,38 @@ package org.javacs.debug.proto;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.javacs.lsp.FramedMessageReader;
+import org.javacs.lsp.FramedMessageWriter;
 
 public class DebugAdapter {
     private static final Gson gson = new Gson();
 
-    private static String readHeader(InputStream client) {
-        var line = new StringBuilder();
-        for (var next = read(client); true; next = read(client)) {
-            if (next == '\r') {
-                var last = read(client);
-                assert last == '\n';
-                break;
-            }
-            line.append(next);
-        }
-        return line.toString();
-    }
-
-    private static int parseHeader(String header) {
-        var contentLength = "Content-Length: ";
-        if (header.startsWith(contentLength)) {
-            var tail = header.substring(contentLength.length());
-            var length = Integer.parseInt(tail);
-            return length;
-        }
-        return -1;
-    }
-
-    private static char read(InputStream client) {
+    /** Read the next message from `messages`, or throw EndOfStream if the client has closed the stream. */
+    private static JsonObject nextMessage(FramedMessageReader messages) {
         try {
-            var c = client.read();
-            if (c == -1) {
+            var body = messages.next();
+            if (body == null) {
                 LOG.warning("Stream from client has been closed, throwing kill exception...");
-                throw new EndOfStream(); // TODO this is showing an error?
+                throw new EndOfStream();
             }
-            return (char) c;
+            return gson.fromJson(body, JsonObject.class);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static String readLength(InputStream client, int byteLength) {
-        // Eat whitespace
-        try {
-            return new String(client.readNBytes(byteLength), StandardCharsets.UTF_8).stripLeading();
-        } catch (IOException e) {
-            throw new RuntimeException("An error occurred during the reading of client data", e);
-        }
-    }
-
-    static String nextToken(InputStream client) {
-        var contentLength = -1;
-        while (true) {
-            var line = readHeader(client);
-            // If header is empty, next line is the start of the message
-            if (line.isEmpty()) return readLength(client, contentLength);
-            // If header contains length, save it
-            var maybeLength = parseHeader(line);
-            if (maybeLength != -1) contentLength = maybeLength;
-        }
-    }
-
-    static JsonObject parseMessage(String token) {
-        return gson.fromJson(token, JsonObject.class);
-    }
-
-    static String toJson(Object message) {
-        return gson.toJson(message);
-    }
-
-    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+    /** Each thread serializes its messages into its own reusable buffer */
+    private static final ThreadLocal<FramedMessageWriter> WRITER = ThreadLocal.withInitial(FramedMessageWriter::new);
 
     private void send(ProtocolMessage message) {
-        var jsonText = toJson(message);
-        // if (!(message instanceof OutputEvent)) {
-        //     LOG.info(jsonText);
-        // }
-        var messageBytes = jsonText.getBytes(UTF_8);
-        var headerText = String.format("Content-Length: %d\r\n\r\n", messageBytes.length);
-        var headerBytes = headerText.getBytes(UTF_8);
-        try {
-            send.write(headerBytes);
-            send.write(messageBytes);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        var writer = WRITER.get();
+        gson.toJson(message, writer.start());
+        writer.writeTo(send);
     }
 
     private static final JsonObject END_OF_STREAM = new JsonObject();
@@ -187,10 +127,10 @@ public class DebugAdapter {
         public void run() {
             LOG.info("Placing incoming messages on queue...");
 
+            var messages = new FramedMessageReader(receive);
             while (true) {
                 try {
-                    var token = nextToken(receive);
-                    var json = parseMessage(token);
+                    var json = nextMessage(messages);
                     var msg = gson.fromJson(json, ProtocolMessage.class);
                     switch (msg.type) {
                         case "request":
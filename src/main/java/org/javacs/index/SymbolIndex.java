@@ -0,0 +1,258 @@
+package org.javacs.index;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Logger;
+import org.javacs.CacheDir;
+import org.javacs.ParseTask;
+import org.javacs.StringSearch;
+import org.javacs.lsp.Location;
+import org.javacs.lsp.Position;
+import org.javacs.lsp.Range;
+import org.javacs.lsp.SymbolInformation;
+
+/**
+ * SymbolIndex remembers the classes, methods and fields declared in every source file, so workspace/symbol doesn't have
+ * to scan and parse the whole workspace on every query.
+ *
+ * <p>Queries use the same title-case matching as {@link StringSearch#matchesTitleCase}. To avoid checking every
+ * symbol, each file is posted under the "humps" of its symbol names: the lower-cased first letter of each word, and
+ * each pair (first letter of a word, any letter that can follow it in a title-case match). A query `fb` only looks at
+ * files that declare something like FooBar or Fb...
+ */
+public class SymbolIndex {
+    private static class Entry {
+        final long modified;
+        final SymbolInformation[] symbols;
+
+        Entry(long modified, SymbolInformation[] symbols) {
+            this.modified = modified;
+            this.symbols = symbols;
+        }
+    }
+
+    private final Map<Path, Entry> files = new HashMap<>();
+    /** postings[hump] is the set of files that declare a symbol with that hump, see {@link #humps} */
+    private final Map<Integer, Set<Path>> postings = new HashMap<>();
+    /** Files that declare symbols whose names can't be split into humps, these are always checked */
+    private final Set<Path> unusual = new HashSet<>();
+    /** Files that have changed since they were last indexed */
+    private final Set<Path> dirty = new HashSet<>();
+
+    private boolean loaded;
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /** Mark `file` as changed, so it will be re-indexed by the next call to refresh(...) */
+    public synchronized void invalidate(Path file) {
+        if (!loaded) return;
+        dirty.add(file);
+    }
+
+    /** Forget everything about `file`, which has been deleted */
+    public synchronized void remove(Path file) {
+        if (!loaded) return;
+        dirty.remove(file);
+        unpost(file);
+    }
+
+    /**
+     * Load the index from `cacheFile`, keeping only the entries that are still up-to-date. Any file in `sources` that
+     * is missing or out-of-date will be indexed by the next call to refresh(...).
+     */
+    public synchronized void load(Path cacheFile, Collection<Path> sources, ToLongFunction<Path> modified) {
+        var stored = read(cacheFile);
+        for (var file : sources) {
+            var entry = stored.get(file);
+            if (entry != null && entry.modified == modified.applyAsLong(file)) {
+                post(file, entry);
+            } else {
+                dirty.add(file);
+            }
+        }
+        LOG.info(
+                String.format(
+                        "Loaded %d up-to-date files from symbol index %s, %d need to be indexed",
+                        files.size(), cacheFile, dirty.size()));
+        loaded = true;
+    }
+
+    /** Re-index every file that has changed since the last refresh, returns the number of files indexed. */
+    public synchronized int refresh(Function<Path, ParseTask> parse, ToLongFunction<Path> modified) {
+        if (dirty.isEmpty()) return 0;
+        var count = 0;
+        for (var file : dirty) {
+            unpost(file);
+            var task = parse.apply(file);
+            var found = new ArrayList<SymbolInformation>();
+            new FindSymbolsMatching(task, "").scan(task.root, found);
+            post(file, new Entry(modified.applyAsLong(file), found.toArray(SymbolInformation[]::new)));
+            count++;
+        }
+        dirty.clear();
+        return count;
+    }
+
+    /** Find up to `limit` symbols whose names match `query`, using the same rules as matchesTitleCase. */
+    public synchronized List<SymbolInformation> search(String query, int limit) {
+        var result = new ArrayList<SymbolInformation>();
+        for (var file : candidates(query)) {
+            for (var symbol : files.get(file).symbols) {
+                if (!StringSearch.matchesTitleCase(symbol.name, query)) continue;
+                result.add(symbol);
+                if (result.size() >= limit) return result;
+            }
+        }
+        return result;
+    }
+
+    private Collection<Path> candidates(String query) {
+        if (query.isEmpty()) {
+            return files.keySet();
+        }
+        var hump = query.length() == 1 ? hump(query.charAt(0)) : hump(query.charAt(0), query.charAt(1));
+        var posted = postings.getOrDefault(hump, Set.of());
+        if (unusual.isEmpty()) return posted;
+        var union = new LinkedHashSet<Path>(posted);
+        union.addAll(unusual);
+        return union;
+    }
+
+    private void post(Path file, Entry entry) {
+        files.put(file, entry);
+        for (var symbol : entry.symbols) {
+            if (!humps(symbol.name, h -> postings.computeIfAbsent(h, __ -> new HashSet<>()).add(file))) {
+                unusual.add(file);
+            }
+        }
+    }
+
+    private void unpost(Path file) {
+        var entry = files.remove(file);
+        unusual.remove(file);
+        if (entry == null) return;
+        for (var symbol : entry.symbols) {
+            humps(
+                    symbol.name,
+                    h -> {
+                        var set = postings.get(h);
+                        if (set == null) return;
+                        set.remove(file);
+                        if (set.isEmpty()) postings.remove(h);
+                    });
+        }
+    }
+
+    private interface HumpConsumer {
+        void accept(int hump);
+    }
+
+    /**
+     * Call `each` with every hump of `name`. A query can only match `name` if its first character is the start of a
+     * word in `name`, and its second character is either the next character or the start of a later word. Returns
+     * false if `name` contains non-word characters, in which case the matching rules are more complicated and the
+     * name has to be checked by brute force.
+     */
+    private static boolean humps(String name, HumpConsumer each) {
+        for (var i = 0; i < name.length(); i++) {
+            if (!isWordChar(name.charAt(i))) return false;
+        }
+        for (var start = 0; start < name.length(); start++) {
+            if (start != 0 && !Character.isUpperCase(name.charAt(start))) continue;
+            var first = name.charAt(start);
+            each.accept(hump(first));
+            for (var next = start + 1; next < name.length(); next++) {
+                if (next == start + 1 || Character.isUpperCase(name.charAt(next))) {
+                    each.accept(hump(first, name.charAt(next)));
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isAlphabetic(c) || Character.isDigit(c) || c == '_' || c == '$';
+    }
+
+    private static int hump(char first) {
+        return Character.toLowerCase(first) << 16;
+    }
+
+    private static int hump(char first, char second) {
+        return Character.toLowerCase(first) << 16 | Character.toLowerCase(second);
+    }
+
+    private static final int MAGIC = 0x4a53594d, VERSION = 1;
+
+    /** Write every up-to-date entry to `cacheFile`, to be reloaded on the next start. */
+    public synchronized void save(Path cacheFile) {
+        try {
+            CacheDir.write(
+                    cacheFile,
+                    MAGIC,
+                    VERSION,
+                    out -> {
+                        var clean = new ArrayList<Path>();
+                        for (var file : files.keySet()) {
+                            if (!dirty.contains(file)) clean.add(file);
+                        }
+                        out.writeInt(clean.size());
+                        for (var file : clean) {
+                            var entry = files.get(file);
+                            out.writeUTF(file.toString());
+                            out.writeLong(entry.modified);
+                            out.writeInt(entry.symbols.length);
+                            for (var s : entry.symbols) {
+                                out.writeUTF(s.name);
+                                out.writeInt(s.kind);
+                                out.writeUTF(Objects.toString(s.containerName, ""));
+                                var range = s.location.range;
+                                out.writeInt(range.start.line);
+                                out.writeInt(range.start.character);
+                                out.writeInt(range.end.line);
+                                out.writeInt(range.end.character);
+                            }
+                        }
+                    });
+            LOG.info(String.format("Saved %d files to symbol index %s", files.size(), cacheFile));
+        } catch (IOException e) {
+            LOG.warning("Failed to save symbol index " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Map<Path, Entry> read(Path cacheFile) {
+        var result = new HashMap<Path, Entry>();
+        if (!Files.exists(cacheFile)) return result;
+        try (var in = CacheDir.read(cacheFile, MAGIC, VERSION)) {
+            var fileCount = in.readInt();
+            for (var i = 0; i < fileCount; i++) {
+                var file = Paths.get(in.readUTF());
+                var uri = file.toUri();
+                var modified = in.readLong();
+                var symbols = new SymbolInformation[in.readInt()];
+                for (var j = 0; j < symbols.length; j++) {
+                    var s = new SymbolInformation();
+                    s.name = in.readUTF();
+                    s.kind = in.readInt();
+                    s.containerName = in.readUTF();
+                    var start = new Position(in.readInt(), in.readInt());
+                    var end = new Position(in.readInt(), in.readInt());
+                    s.location = new Location(uri, new Range(start, end));
+                    symbols[j] = s;
+                }
+                result.put(file, new Entry(modified, symbols));
+            }
+        } catch (IOException e) {
+            LOG.warning("Failed to read symbol index " + cacheFile + ": " + e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
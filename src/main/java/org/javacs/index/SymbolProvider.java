@@ -1,6 +1,8 @@
 package org.javacs.index;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -18,25 +20,10 @@ public class SymbolProvider {
 
     public List<SymbolInformation> findSymbols(String query, int limit) {
         LOG.info(String.format("Searching for `%s`...", query));
-        var result = new ArrayList<SymbolInformation>();
-        var checked = 0;
-        var parsed = 0;
-        for (var file : compiler.search(query)) {
-            checked++;
-            // Parse the file and check class members for matches
-            LOG.info(String.format("...%s contains text matches", file.getFileName()));
-            var task = compiler.parse(file);
-            var symbols = findSymbolsMatching(task, query);
-            parsed++;
-            // If we confirm matches, add them to the results
-            if (symbols.size() > 0) {
-                LOG.info(String.format("...found %d occurrences", symbols.size()));
-            }
-            result.addAll(symbols);
-            // If results are full, stop
-            if (result.size() >= limit) break;
-        }
-
+        var started = Instant.now();
+        var result = compiler.symbolIndex().search(query, limit);
+        var elapsed = Duration.between(started, Instant.now()).toMillis();
+        LOG.info(String.format("...found %d symbols in %d ms", result.size(), elapsed));
         return result;
     }
 
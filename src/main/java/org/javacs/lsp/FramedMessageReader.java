@@ -0,0 +1,139 @@
+package org.javacs.lsp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FramedMessageReader reads messages framed by `Content-Length` headers, the wire format shared by the language server
+ * protocol and the debug adapter protocol. It reads from the stream in bulk into a buffer that is reused from message
+ * to message, finds headers by scanning the bytes, and hands each body to the caller as a Reader over the buffer,
+ * without copying it into a String.
+ *
+ * <p>Because it reads ahead, there should only be one FramedMessageReader per stream.
+ */
+public class FramedMessageReader {
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private byte[] buffer = new byte[64 * 1024];
+    /** The bytes that have been read from `in` but not consumed are buffer[start, end) */
+    private int start, end;
+
+    public FramedMessageReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next message and return its body, or null if the stream has been closed. The body is only valid until
+     * the next call to next().
+     */
+    public Reader next() throws IOException {
+        var length = readHeaders();
+        if (length == -1) return null;
+        if (!fill(length)) return null;
+        var body = new ByteArrayInputStream(buffer, start, length);
+        start += length;
+        return new InputStreamReader(body, StandardCharsets.UTF_8);
+    }
+
+    /** Read the next message and copy its body into a String, or return null if the stream has been closed. */
+    public String nextString() throws IOException {
+        var length = readHeaders();
+        if (length == -1) return null;
+        if (!fill(length)) return null;
+        var body = new String(buffer, start, length, StandardCharsets.UTF_8);
+        start += length;
+        return body;
+    }
+
+    /** Consume headers up to and including the blank line that ends them, and return the value of Content-Length. */
+    private int readHeaders() throws IOException {
+        var contentLength = -1;
+        while (true) {
+            var lineEnd = findLineEnd();
+            if (lineEnd == -1) return -1;
+            // If header is empty, next line is the start of the message
+            if (lineEnd == start) {
+                start += 2;
+                if (contentLength == -1) throw new RuntimeException("Message has no Content-Length header");
+                return contentLength;
+            }
+            // If header contains length, save it
+            if (startsWithIgnoreCase(start, lineEnd, CONTENT_LENGTH)) {
+                contentLength = parseInt(start + CONTENT_LENGTH.length, lineEnd);
+            }
+            start = lineEnd + 2;
+        }
+    }
+
+    /** Find the next \r\n, reading more of the stream if necessary. Returns the index of \r, or -1 at end-of-stream. */
+    private int findLineEnd() throws IOException {
+        var scanned = start;
+        while (true) {
+            for (var i = scanned; i + 1 < end; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') return i;
+            }
+            scanned = Math.max(start, end - 1);
+            var shift = start;
+            if (!readMore()) return -1;
+            scanned -= shift;
+        }
+    }
+
+    private boolean startsWithIgnoreCase(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (var i = 0; i < prefix.length; i++) {
+            var b = buffer[from + i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private int parseInt(int from, int to) {
+        var value = 0;
+        var digits = 0;
+        for (var i = from; i < to; i++) {
+            var b = buffer[i];
+            if (b == ' ' || b == '\t') continue;
+            if (b < '0' || b > '9') throw new RuntimeException("Bad Content-Length header");
+            value = value * 10 + (b - '0');
+            digits++;
+        }
+        if (digits == 0) throw new RuntimeException("Bad Content-Length header");
+        return value;
+    }
+
+    /** Make sure the next `length` bytes are in the buffer. Returns false if the stream ends first. */
+    private boolean fill(int length) throws IOException {
+        while (end - start < length) {
+            if (!readMore(length)) return false;
+        }
+        return true;
+    }
+
+    private boolean readMore() throws IOException {
+        return readMore(0);
+    }
+
+    /**
+     * Read at least one more byte from the stream. Moves the unconsumed bytes to the front of the buffer, and grows the
+     * buffer if it can't fit `atLeast` unconsumed bytes. Returns false at end-of-stream.
+     */
+    private boolean readMore(int atLeast) throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length || atLeast > buffer.length) {
+            var grown = new byte[Math.max(buffer.length * 2, atLeast)];
+            System.arraycopy(buffer, 0, grown, 0, end);
+            buffer = grown;
+        }
+        var n = in.read(buffer, end, buffer.length - end);
+        if (n == -1) return false;
+        end += n;
+        return true;
+    }
+}
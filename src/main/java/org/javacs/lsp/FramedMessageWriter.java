@@ -0,0 +1,61 @@
+package org.javacs.lsp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FramedMessageWriter is the counterpart of {@link FramedMessageReader}. Messages are serialized straight into a byte
+ * buffer that is reused from message to message, and the Content-Length header is filled in at the front of that same
+ * buffer, so each message reaches the stream in a single write without being copied into a String first.
+ *
+ * <p>A FramedMessageWriter isn't thread-safe, so each thread should have its own.
+ */
+public class FramedMessageWriter {
+    /** Room at the start of the buffer for the header, "Content-Length: 2147483647\r\n\r\n" is 30 bytes */
+    private static final int HEADER_SPACE = 32;
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(8 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private final Buffer buffer = new Buffer();
+    private final Writer body = new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+
+    /** Start a new message, and return the writer for its body. The body must be written before calling writeTo. */
+    public Writer start() {
+        buffer.reset();
+        for (var i = 0; i < HEADER_SPACE; i++) {
+            buffer.write(' ');
+        }
+        return body;
+    }
+
+    /** Write the header and body of the current message to `out` */
+    public void writeTo(OutputStream out) {
+        try {
+            body.flush();
+            var bytes = buffer.array();
+            var length = buffer.size() - HEADER_SPACE;
+            var header = ("Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            var offset = HEADER_SPACE - header.length;
+            System.arraycopy(header, 0, bytes, offset, header.length);
+            // Messages may be sent from several threads, so don't let them interleave
+            synchronized (out) {
+                out.write(bytes, offset, buffer.size() - offset);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** The number of bytes this writer is holding on to, so callers can throw away writers that grew too big */
+    public int capacity() {
+        return buffer.array().length;
+    }
+}
@@ -3,12 +3,16 @@ package org.javacs.lsp;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,64 +20,35 @@ import java.util.logging.Logger;
 public class LSP {
     private static final Gson gson = new Gson();
 
-    private static String readHeader(InputStream client) {
-        var line = new StringBuilder();
-        for (var next = read(client); true; next = read(client)) {
-            if (next == '\r') {
-                var last = read(client);
-                assert last == '\n';
-                break;
-            }
-            line.append(next);
-        }
-        return line.toString();
-    }
-
-    private static int parseHeader(String header) {
-        var contentLength = "Content-Length: ";
-        if (header.startsWith(contentLength)) {
-            var tail = header.substring(contentLength.length());
-            var length = Integer.parseInt(tail);
-            return length;
-        }
-        return -1;
-    }
-
     static class EndOfStream extends RuntimeException {}
 
-    // TODO this seems like it's probably really inefficient. Read in bulk?
-    private static char read(InputStream client) {
+    /** Read the next message from `messages`, or throw EndOfStream if the client has closed the stream. */
+    private static Message nextMessage(FramedMessageReader messages) {
         try {
-            var c = client.read();
-            if (c == -1) {
+            var body = messages.next();
+            if (body == null) {
                 LOG.warning("Stream from client has been closed, throwing kill exception...");
                 throw new EndOfStream();
             }
-            return (char) c;
+            return gson.fromJson(body, Message.class);
         } catch (IOException e) {
             LOG.log(Level.SEVERE, e.getMessage(), e);
             throw new EndOfStream();
         }
     }
 
-    private static String readLength(InputStream client, int byteLength) {
-        // Eat whitespace
+    /**
+     * Read a single message from `client` as a String. FramedMessageReader reads ahead, so this is only safe when
+     * there's nothing else to read on `client`; connect(...) keeps one reader for the whole stream.
+     */
+    static String nextToken(InputStream client) {
         try {
-            return new String(client.readNBytes(byteLength), StandardCharsets.UTF_8).stripLeading();
+            var token = new FramedMessageReader(client).nextString();
+            if (token == null) throw new EndOfStream();
+            return token;
         } catch (IOException e) {
-            throw new RuntimeException("An error occurred during the reading of client data", e);
-        }
-    }
-
-    static String nextToken(InputStream client) {
-        var contentLength = -1;
-        while (true) {
-            var line = readHeader(client);
-            // If header is empty, next line is the start of the message
-            if (line.isEmpty()) return readLength(client, contentLength);
-            // If header contains length, save it
-            var maybeLength = parseHeader(line);
-            if (maybeLength != -1) contentLength = maybeLength;
+            LOG.log(Level.SEVERE, e.getMessage(), e);
+            throw new EndOfStream();
         }
     }
 
@@ -81,18 +56,31 @@ public class LSP {
         return gson.fromJson(token, Message.class);
     }
 
-    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+    /** Each thread serializes its messages into its own reusable buffer */
+    private static final ThreadLocal<FramedMessageWriter> WRITER = ThreadLocal.withInitial(FramedMessageWriter::new);
+    /** Don't hold on to buffers that grew bigger than this serializing an unusually large message */
+    private static final int MAX_RETAINED_WRITER = 4 * 1024 * 1024;
 
-    private static void writeClient(OutputStream client, String messageText) {
-        var messageBytes = messageText.getBytes(UTF_8);
-        var headerText = String.format("Content-Length: %d\r\n\r\n", messageBytes.length);
-        var headerBytes = headerText.getBytes(UTF_8);
+    /**
+     * Send `{"jsonrpc":"2.0",<head>:<json>}` to the client, where `head` is the already-serialized start of the message
+     * and `json` is `value` serialized by gson.
+     */
+    private static void writeClient(OutputStream client, String head, Object value) {
+        var writer = WRITER.get();
         try {
-            client.write(headerBytes);
-            client.write(messageBytes);
+            var body = writer.start();
+            body.write("{\"jsonrpc\":\"2.0\",");
+            body.write(head);
+            body.write(':');
+            gson.toJson(value, body);
+            body.write('}');
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        writer.writeTo(client);
+        if (writer.capacity() > MAX_RETAINED_WRITER) {
+            WRITER.remove();
+        }
     }
 
     static String toJson(Object message) {
@@ -108,15 +96,11 @@ public class LSP {
             var option = (Optional) params;
             params = option.orElse(null);
         }
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"result\":%s}", requestId, jsonText);
-        writeClient(client, messageText);
+        writeClient(client, "\"id\":" + requestId + ",\"result\"", params);
     }
 
     static void error(OutputStream client, int requestId, ResponseError error) {
-        var jsonText = toJson(error);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"id\":%d,\"error\":%s}", requestId, jsonText);
-        writeClient(client, messageText);
+        writeClient(client, "\"id\":" + requestId + ",\"error\"", error);
     }
 
     @SuppressWarnings("unchecked")
@@ -125,9 +109,7 @@ public class LSP {
             var option = (Optional) params;
             params = option.orElse(null);
         }
-        var jsonText = toJson(params);
-        var messageText = String.format("{\"jsonrpc\":\"2.0\",\"method\":\"%s\",\"params\":%s}", method, jsonText);
-        writeClient(client, messageText);
+        writeClient(client, "\"method\":\"" + method + "\",\"params\"", params);
     }
 
     private static class RealClient implements LanguageClient {
@@ -163,11 +145,121 @@ public class LSP {
         }
     }
 
+    /** Handle a request that doesn't modify any state, so it can run on a worker thread */
+    private static Object readOnlyRequest(LanguageServer server, Message r) {
+        switch (r.method) {
+            case "workspace/symbol":
+                {
+                    var params = gson.fromJson(r.params, WorkspaceSymbolParams.class);
+                    return server.workspaceSymbols(params);
+                }
+            case "textDocument/documentLink":
+                {
+                    var params = gson.fromJson(r.params, DocumentLinkParams.class);
+                    return server.documentLink(params);
+                }
+            case "textDocument/completion":
+                {
+                    var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                    return server.completion(params);
+                }
+            case "completionItem/resolve":
+                {
+                    var params = gson.fromJson(r.params, CompletionItem.class);
+                    return server.resolveCompletionItem(params);
+                }
+            case "textDocument/hover":
+                {
+                    var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                    return server.hover(params);
+                }
+            case "textDocument/signatureHelp":
+                {
+                    var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                    return server.signatureHelp(params);
+                }
+            case "textDocument/definition":
+                {
+                    var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                    return server.gotoDefinition(params);
+                }
+            case "textDocument/references":
+                {
+                    var params = gson.fromJson(r.params, ReferenceParams.class);
+                    return server.findReferences(params);
+                }
+            case "textDocument/documentSymbol":
+                {
+                    var params = gson.fromJson(r.params, DocumentSymbolParams.class);
+                    return server.documentSymbol(params);
+                }
+            case "textDocument/codeLens":
+                {
+                    var params = gson.fromJson(r.params, CodeLensParams.class);
+                    return server.codeLens(params);
+                }
+            case "codeLens/resolve":
+                {
+                    var params = gson.fromJson(r.params, CodeLens.class);
+                    return server.resolveCodeLens(params);
+                }
+            case "textDocument/prepareRename":
+                {
+                    var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
+                    return server.prepareRename(params);
+                }
+            case "textDocument/foldingRange":
+                {
+                    var params = gson.fromJson(r.params, FoldingRangeParams.class);
+                    return server.foldingRange(params);
+                }
+            default:
+                throw new RuntimeException(String.format("`%s` is not a read-only request", r.method));
+        }
+    }
+
+    /** Requests that only read state. These run on worker threads, so a slow request doesn't block the others. */
+    private static final Set<String> READ_ONLY_REQUESTS =
+            Set.of(
+                    "workspace/symbol",
+                    "textDocument/documentLink",
+                    "textDocument/completion",
+                    "completionItem/resolve",
+                    "textDocument/hover",
+                    "textDocument/signatureHelp",
+                    "textDocument/definition",
+                    "textDocument/references",
+                    "textDocument/documentSymbol",
+                    "textDocument/codeLens",
+                    "codeLens/resolve",
+                    "textDocument/prepareRename",
+                    "textDocument/foldingRange");
+
+    private static ExecutorService workers() {
+        var threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        var count = new AtomicInteger();
+        return Executors.newFixedThreadPool(
+                threads,
+                task -> {
+                    var thread = new Thread(task, "worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static void cancelled(OutputStream send, int requestId) {
+        error(send, requestId, new ResponseError(ErrorCodes.RequestCancelled, "Request was cancelled", null));
+    }
+
     public static void connect(
             Function<LanguageClient, LanguageServer> serverFactory, InputStream receive, OutputStream send) {
         var server = serverFactory.apply(new RealClient(send));
         var pending = new ArrayBlockingQueue<Message>(10);
         var endOfStream = new Message();
+        var workers = workers();
+        // Requests that are running on worker threads. Whoever removes a request from this map gets to respond to it.
+        var running = new ConcurrentHashMap<Integer, Future<?>>();
+        var metrics = new RequestMetrics();
 
         // Read messages and process cancellations on a separate thread
         class MessageReader implements Runnable {
@@ -175,8 +267,17 @@ public class LSP {
                 if (message.method.equals("$/cancelRequest")) {
                     var params = gson.fromJson(message.params, CancelParams.class);
                     var removed = pending.removeIf(r -> r.id != null && r.id.equals(params.id));
-                    if (removed) LOG.info(String.format("Cancelled request %d, which had not yet started", params.id));
-                    else LOG.info(String.format("Cannot cancel request %d because it has already started", params.id));
+                    // We don't interrupt requests that have already started,
+                    // because interrupting a thread that's reading a file closes the channel for every thread.
+                    // Instead, we respond now and discard the result when the request finishes.
+                    var future = running.remove(params.id);
+                    if (future != null) future.cancel(false);
+                    if (removed || future != null) {
+                        LOG.info(String.format("Cancelled request %d", params.id));
+                        cancelled(send, params.id);
+                    } else {
+                        LOG.info(String.format("Cannot cancel request %d because it has already started", params.id));
+                    }
                 }
             }
 
@@ -195,10 +296,10 @@ public class LSP {
             public void run() {
                 LOG.info("Placing incoming messages on queue...");
 
+                var messages = new FramedMessageReader(receive);
                 while (true) {
                     try {
-                        var token = nextToken(receive);
-                        var message = parseMessage(token);
+                        var message = nextMessage(messages);
                         peek(message);
                         pending.put(message);
                     } catch (EndOfStream __) {
@@ -215,13 +316,12 @@ public class LSP {
 
         // Process messages on main thread
         LOG.info("Reading messages from queue...");
-        var hasAsyncWork = false;
         processMessages:
         while (true) {
             Message r;
             try {
-                // Take a break periodically
-                r = pending.poll(200, TimeUnit.MILLISECONDS);
+                // Background work like linting runs on the server's own threads, so just wait for the next message
+                r = pending.take();
             } catch (Exception e) {
                 LOG.log(Level.SEVERE, e.getMessage(), e);
                 continue;
@@ -231,16 +331,36 @@ public class LSP {
                 LOG.warning("Stream from client has been closed, exiting...");
                 break processMessages;
             }
-            // If poll(_) failed, loop again
-            if (r == null) {
-                if (hasAsyncWork) {
-                    server.doAsyncWork();
-                    hasAsyncWork = false;
-                }
+            // Read-only requests run on worker threads
+            if (r.id != null && READ_ONLY_REQUESTS.contains(r.method)) {
+                var request = r;
+                var future =
+                        new FutureTask<Void>(
+                                () -> {
+                                    var started = System.nanoTime();
+                                    try {
+                                        var response = readOnlyRequest(server, request);
+                                        if (running.remove(request.id) != null) {
+                                            respond(send, request.id, response);
+                                        }
+                                    } catch (Exception e) {
+                                        LOG.log(Level.SEVERE, e.getMessage(), e);
+                                        if (running.remove(request.id) != null) {
+                                            var error =
+                                                    new ResponseError(ErrorCodes.InternalError, e.getMessage(), null);
+                                            error(send, request.id, error);
+                                        }
+                                    } finally {
+                                        metrics.record(request.method, System.nanoTime() - started);
+                                    }
+                                },
+                                null);
+                running.put(r.id, future);
+                workers.execute(future);
                 continue;
             }
-            // Otherwise, process the new message
-            hasAsyncWork = true;
+            // Everything else runs on the main thread, in the order the client sent it
+            var started = System.nanoTime();
             try {
                 switch (r.method) {
                     case "initialize":
@@ -258,6 +378,7 @@ public class LSP {
                     case "shutdown":
                         {
                             LOG.warning("Got shutdown message");
+                            metrics.report();
                             respond(send, r.id, null);
                             break;
                         }
@@ -284,20 +405,6 @@ public class LSP {
                             server.didChangeWatchedFiles(params);
                             break;
                         }
-                    case "workspace/symbol":
-                        {
-                            var params = gson.fromJson(r.params, WorkspaceSymbolParams.class);
-                            var response = server.workspaceSymbols(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/documentLink":
-                        {
-                            var params = gson.fromJson(r.params, DocumentLinkParams.class);
-                            var response = server.documentLink(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
                     case "textDocument/didOpen":
                         {
                             var params = gson.fromJson(r.params, DidOpenTextDocumentParams.class);
@@ -335,55 +442,6 @@ public class LSP {
                             server.didCloseTextDocument(params);
                             break;
                         }
-                    case "textDocument/completion":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.completion(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "completionItem/resolve":
-                        {
-                            var params = gson.fromJson(r.params, CompletionItem.class);
-                            var response = server.resolveCompletionItem(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/hover":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.hover(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/signatureHelp":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.signatureHelp(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/definition":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.gotoDefinition(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/references":
-                        {
-                            var params = gson.fromJson(r.params, ReferenceParams.class);
-                            var response = server.findReferences(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/documentSymbol":
-                        {
-                            var params = gson.fromJson(r.params, DocumentSymbolParams.class);
-                            var response = server.documentSymbol(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
                     case "textDocument/codeAction":
                         {
                             var params = gson.fromJson(r.params, CodeActionParams.class);
@@ -391,27 +449,6 @@ public class LSP {
                             respond(send, r.id, response);
                             break;
                         }
-                    case "textDocument/codeLens":
-                        {
-                            var params = gson.fromJson(r.params, CodeLensParams.class);
-                            var response = server.codeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "codeLens/resolve":
-                        {
-                            var params = gson.fromJson(r.params, CodeLens.class);
-                            var response = server.resolveCodeLens(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
-                    case "textDocument/prepareRename":
-                        {
-                            var params = gson.fromJson(r.params, TextDocumentPositionParams.class);
-                            var response = server.prepareRename(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
                     case "textDocument/rename":
                         {
                             var params = gson.fromJson(r.params, RenameParams.class);
@@ -426,13 +463,6 @@ public class LSP {
                             respond(send, r.id, response);
                             break;
                         }
-                    case "textDocument/foldingRange":
-                        {
-                            var params = gson.fromJson(r.params, FoldingRangeParams.class);
-                            var response = server.foldingRange(params);
-                            respond(send, r.id, response);
-                            break;
-                        }
                     case "$/cancelRequest":
                         // Already handled in peek(message)
                         break;
@@ -444,8 +474,11 @@ public class LSP {
                 if (r.id != null) {
                     error(send, r.id, new ResponseError(ErrorCodes.InternalError, e.getMessage(), null));
                 }
+            } finally {
+                metrics.record(r.method, System.nanoTime() - started);
             }
         }
+        workers.shutdown();
     }
 
     private static final Logger LOG = Logger.getLogger("main");
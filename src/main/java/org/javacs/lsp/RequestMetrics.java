@@ -0,0 +1,43 @@
+package org.javacs.lsp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/** RequestMetrics records how long each kind of message takes to process, and periodically logs a summary. */
+class RequestMetrics {
+    private static class Latency {
+        int count;
+        long totalNanos, maxNanos;
+    }
+
+    /** Log a summary after this many messages */
+    private static final int REPORT_EVERY = 100;
+
+    private final Map<String, Latency> byMethod = new TreeMap<>();
+    private int sinceReport;
+
+    synchronized void record(String method, long nanos) {
+        var latency = byMethod.computeIfAbsent(method, __ -> new Latency());
+        latency.count++;
+        latency.totalNanos += nanos;
+        latency.maxNanos = Math.max(latency.maxNanos, nanos);
+        if (++sinceReport >= REPORT_EVERY) {
+            report();
+        }
+    }
+
+    synchronized void report() {
+        sinceReport = 0;
+        var summary = new StringBuilder("Latency by method:");
+        for (var method : byMethod.keySet()) {
+            var latency = byMethod.get(method);
+            var mean = latency.totalNanos / latency.count / 1_000_000;
+            var max = latency.maxNanos / 1_000_000;
+            summary.append(String.format("\n\t%s: %d calls, mean %d ms, max %d ms", method, latency.count, mean, max));
+        }
+        LOG.info(summary.toString());
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
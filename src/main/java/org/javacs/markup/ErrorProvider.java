@@ -28,6 +28,9 @@ public class ErrorProvider {
             result[i] = new PublishDiagnosticsParams();
             result[i].uri = root.getSourceFile().toUri();
             result[i].diagnostics.addAll(compilerErrors(root));
+            result[i].diagnostics.addAll(truncatedWarnings(root));
+            // Files that weren't analyzed don't have the symbols these warnings need
+            if (task.skipped.contains(result[i].uri)) continue;
             result[i].diagnostics.addAll(unusedWarnings(root));
             result[i].diagnostics.addAll(notThrownWarnings(root));
         }
@@ -46,6 +49,28 @@ public class ErrorProvider {
         return result;
     }
 
+    /** Tell the user when some errors aren't being shown, so they know the list is incomplete */
+    private List<org.javacs.lsp.Diagnostic> truncatedWarnings(CompilationUnitTree root) {
+        var uri = root.getSourceFile().toUri();
+        var messages = new ArrayList<String>();
+        if (task.skipped.contains(uri)) {
+            messages.add("Too many errors, skipped checking types until some of them are fixed");
+        }
+        if (task.droppedDiagnostics.containsKey(uri)) {
+            messages.add("Too many problems, only some of them are shown");
+        }
+        var result = new ArrayList<org.javacs.lsp.Diagnostic>();
+        for (var message : messages) {
+            var d = new org.javacs.lsp.Diagnostic();
+            d.message = message;
+            d.range = new Range(new Position(0, 0), new Position(0, 0));
+            d.code = "truncated";
+            d.severity = DiagnosticSeverity.Information;
+            result.add(d);
+        }
+        return result;
+    }
+
     private List<org.javacs.lsp.Diagnostic> unusedWarnings(CompilationUnitTree root) {
         var result = new ArrayList<org.javacs.lsp.Diagnostic>();
         var warnUnused = new WarnUnused(task.task);
@@ -0,0 +1,23 @@
+package org.javacs.example;
+
+public class ErasedConstructors {
+    private final String field;
+
+    public ErasedConstructors(String field) {
+        this.field = field;
+    }
+
+    public ErasedConstructors() {
+        this("default");
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public static class Subclass extends GotoOther {
+        public Subclass() {
+            super("subclass");
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package org.javacs.other;
+
+public class HasStaticMethods {
+    public static void importedMethod() {}
+
+    public static void qualifiedMethod() {}
+}
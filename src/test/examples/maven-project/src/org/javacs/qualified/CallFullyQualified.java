@@ -0,0 +1,7 @@
+package org.javacs.qualified;
+
+class CallFullyQualified {
+    void test() {
+        org.javacs.other.HasStaticMethods.qualifiedMethod();
+    }
+}
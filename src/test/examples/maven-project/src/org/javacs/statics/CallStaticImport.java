@@ -0,0 +1,9 @@
+package org.javacs.statics;
+
+import static org.javacs.other.HasStaticMethods.importedMethod;
+
+class CallStaticImport {
+    void test() {
+        importedMethod();
+    }
+}
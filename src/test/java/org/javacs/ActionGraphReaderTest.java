@@ -0,0 +1,66 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import com.google.devtools.build.lib.analysis.AnalysisProtos;
+import com.google.devtools.build.lib.analysis.AnalysisProtosV2;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class ActionGraphReaderTest {
+    private AnalysisProtosV2.ActionGraphContainer v2() {
+        var container = AnalysisProtosV2.ActionGraphContainer.newBuilder();
+        container.addPathFragments(AnalysisProtosV2.PathFragment.newBuilder().setId(1).setLabel("external"));
+        container.addPathFragments(
+                AnalysisProtosV2.PathFragment.newBuilder().setId(2).setParentId(1).setLabel("guava.jar"));
+        container.addPathFragments(AnalysisProtosV2.PathFragment.newBuilder().setId(3).setLabel("hello.jar"));
+        container.addArtifacts(AnalysisProtosV2.Artifact.newBuilder().setId(10).setPathFragmentId(2));
+        container.addArtifacts(AnalysisProtosV2.Artifact.newBuilder().setId(11).setPathFragmentId(3));
+        container.addActions(
+                AnalysisProtosV2.Action.newBuilder()
+                        .setMnemonic("Javac")
+                        .addArguments("--output")
+                        .addArguments("hello.jar")
+                        .addArguments("--classpath")
+                        .addArguments("external/guava.jar")
+                        .addArguments("hello.jar")
+                        .addArguments("--sources")
+                        .addArguments("Hello.java")
+                        .addOutputIds(11));
+        return container.build();
+    }
+
+    private AnalysisProtos.ActionGraphContainer v1() {
+        var container = AnalysisProtos.ActionGraphContainer.newBuilder();
+        container.addArtifacts(AnalysisProtos.Artifact.newBuilder().setId("a").setExecPath("external/guava.jar"));
+        container.addArtifacts(AnalysisProtos.Artifact.newBuilder().setId("b").setExecPath("hello.jar"));
+        container.addActions(
+                AnalysisProtos.Action.newBuilder()
+                        .setMnemonic("Javac")
+                        .addArguments("--output")
+                        .addArguments("hello.jar")
+                        .addArguments("--classpath")
+                        .addArguments("external/guava.jar")
+                        .addArguments("hello.jar")
+                        .addOutputIds("b"));
+        return container.build();
+    }
+
+    @Test
+    public void readV2() throws IOException {
+        var bytes = v2().toByteArray();
+        assertThat(
+                ActionGraphReader.read(new ByteArrayInputStream(bytes), "--classpath"), contains("external/guava.jar"));
+        assertThat(ActionGraphReader.read(new ByteArrayInputStream(bytes), "--output"), contains("hello.jar"));
+    }
+
+    @Test
+    public void readV1() throws IOException {
+        var bytes = v1().toByteArray();
+        assertThat(
+                ActionGraphReader.read(new ByteArrayInputStream(bytes), "--classpath"), contains("external/guava.jar"));
+        assertThat(ActionGraphReader.read(new ByteArrayInputStream(bytes), "--output"), contains("hello.jar"));
+    }
+}
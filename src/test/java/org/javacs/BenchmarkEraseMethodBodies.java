@@ -0,0 +1,89 @@
+package org.javacs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class BenchmarkEraseMethodBodies {
+    // JavaLanguageServer uses most of the other sources in this project
+    private static final Path FILE =
+            Paths.get("src/main/java/org/javacs/JavaLanguageServer.java").toAbsolutePath().normalize();
+    private static final Path WORKSPACE_ROOT = Paths.get(".").normalize().toAbsolutePath();
+
+    static {
+        FileStore.setWorkspaceRoots(Set.of(WORKSPACE_ROOT));
+    }
+
+    private static final Set<Path> CLASS_PATH = new InferConfig(WORKSPACE_ROOT).classPath();
+
+    private static JavaCompilerService createCompiler(boolean eraseMethodBodies) {
+        LOG.info("Create new compiler...");
+        return new JavaCompilerService(
+                CLASS_PATH, Collections.emptySet(), Collections.emptySet(), 1, eraseMethodBodies);
+    }
+
+    /** Compilers that have already compiled FILE many times, like a server that has been running for a while */
+    @State(Scope.Benchmark)
+    public static class SteadyState {
+        public String contents = FileStore.contents(FILE);
+        public JavaCompilerService erased = createCompiler(true);
+        public JavaCompilerService plain = createCompiler(false);
+    }
+
+    /** New compilers and empty caches before every compile, like a server that has just started */
+    @State(Scope.Thread)
+    public static class FirstCompileState {
+        public JavaCompilerService erased, plain;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            Cache.clearAll();
+            erased = createCompiler(true);
+            plain = createCompiler(false);
+        }
+    }
+
+    /** A new version of the file, so the compile isn't reused from the cache of recent batches */
+    private static SourceFileObject touch(String contents) {
+        return new SourceFileObject(FILE, contents, Instant.now());
+    }
+
+    @Benchmark
+    public void compileErased(SteadyState state) {
+        state.erased.compile(List.of(touch(state.contents))).close();
+    }
+
+    @Benchmark
+    public void compilePlain(SteadyState state) {
+        state.plain.compile(List.of(touch(state.contents))).close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public void firstCompileErased(FirstCompileState state) {
+        state.erased.compile(List.of(new SourceFileObject(FILE))).close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public void firstCompilePlain(FirstCompileState state) {
+        state.plain.compile(List.of(new SourceFileObject(FILE))).close();
+    }
+
+    private static final Logger LOG = Logger.getLogger("main");
+}
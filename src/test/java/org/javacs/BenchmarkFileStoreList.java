@@ -0,0 +1,67 @@
+package org.javacs;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkFileStoreList {
+
+    @State(Scope.Benchmark)
+    public static class WorkspaceState {
+        public SourceFileManager fileManager;
+
+        @Setup
+        public void setup() {
+            FileStore.setWorkspaceRoots(Set.of(Paths.get(".").normalize().toAbsolutePath()));
+            fileManager = new SourceFileManager();
+        }
+    }
+
+    /** How javac lists a package on the source path, looking it up in the package index */
+    @Benchmark
+    public int listIndexed(WorkspaceState state) throws Exception {
+        var kinds = Set.of(JavaFileObject.Kind.SOURCE);
+        var count = 0;
+        for (var __ : state.fileManager.list(StandardLocation.SOURCE_PATH, "org.javacs", kinds, false)) {
+            count++;
+        }
+        return count;
+    }
+
+    /** The same lookup the way FileStore.list used to do it, by checking the package of every source file */
+    @Benchmark
+    public int listScan(WorkspaceState state) {
+        var count = 0;
+        for (var __ : scan("org.javacs")) {
+            count++;
+        }
+        return count;
+    }
+
+    private static List<JavaFileObject> scan(String packageName) {
+        var list = new ArrayList<JavaFileObject>();
+        for (var file : FileStore.all()) {
+            if (FileStore.packageName(file).equals(packageName)) {
+                list.add(new SourceFileObject(file));
+            }
+        }
+        return list;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var state = new WorkspaceState();
+        state.setup();
+        var benchmark = new BenchmarkFileStoreList();
+        while (true) {
+            benchmark.listIndexed(state);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.javacs;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.javacs.lsp.*;
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BenchmarkMessageReader {
+    private static final Gson gson = new Gson();
+
+    @State(Scope.Benchmark)
+    public static class StreamState {
+        /** 20 didChange notifications, each replacing the whole text of a large file */
+        public byte[] stream;
+
+        @Setup
+        public void setup() throws IOException {
+            var text = Files.readString(Paths.get("src/main/java/org/javacs/JavaLanguageServer.java"));
+            var out = new ByteArrayOutputStream();
+            for (var version = 1; version <= 20; version++) {
+                var params = new DidChangeTextDocumentParams();
+                params.textDocument.uri = Paths.get("JavaLanguageServer.java").toUri();
+                params.textDocument.version = version;
+                var change = new TextDocumentContentChangeEvent();
+                change.text = text;
+                params.contentChanges.add(change);
+                var message = new Message();
+                message.jsonrpc = "2.0";
+                message.method = "textDocument/didChange";
+                message.params = gson.toJsonTree(params);
+                var body = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+                out.write(String.format("Content-Length: %d\r\n\r\n", body.length).getBytes(StandardCharsets.UTF_8));
+                out.write(body);
+            }
+            stream = out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public int readDidChange(StreamState state) throws IOException {
+        var messages = new FramedMessageReader(new ByteArrayInputStream(state.stream));
+        var total = 0;
+        for (var body = messages.next(); body != null; body = messages.next()) {
+            var message = gson.fromJson(body, Message.class);
+            var params = gson.fromJson(message.params, DidChangeTextDocumentParams.class);
+            total += params.contentChanges.get(0).text.length();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws IOException {
+        var state = new StreamState();
+        state.setup();
+        var benchmark = new BenchmarkMessageReader();
+        while (true) {
+            benchmark.readDidChange(state);
+        }
+    }
+}
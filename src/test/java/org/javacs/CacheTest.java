@@ -0,0 +1,86 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheTest {
+    private final Cache<String, String> cache = new Cache<>("test", 2);
+    private final Path file = FindResource.path("/org/javacs/example/Goto.java");
+    private final Path otherFile = FindResource.path("/org/javacs/example/GotoOther.java");
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @After
+    public void resetBudget() {
+        cache.clear();
+        Cache.setBudget(Cache.DEFAULT_BUDGET);
+    }
+
+    @Test
+    public void countHitsAndMisses() {
+        assertThat(cache.get(file, "a", () -> "1"), equalTo("1"));
+        assertThat(cache.get(file, "a", () -> "2"), equalTo("1"));
+        var stats = cache.stats();
+        assertThat(stats.hits, equalTo(1L));
+        assertThat(stats.misses, equalTo(1L));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        cache.load(file, "a", "1");
+        cache.load(file, "b", "2");
+        // Touch a, so b is the least recently used
+        assertTrue(cache.has(file, "a"));
+        cache.load(file, "c", "3");
+        assertTrue(cache.has(file, "a"));
+        assertFalse(cache.has(file, "b"));
+        assertTrue(cache.has(file, "c"));
+        assertThat(cache.stats().evictions, equalTo(1L));
+    }
+
+    @Test
+    public void invalidateFile() {
+        cache.load(file, "a", "1");
+        cache.load(otherFile, "a", "2");
+        Cache.invalidateAll(file);
+        assertFalse(cache.has(file, "a"));
+        assertTrue(cache.has(otherFile, "a"));
+        assertThat(cache.stats().invalidations, equalTo(1L));
+    }
+
+    @Test
+    public void stayUnderBudget() {
+        Cache.setBudget(0);
+        cache.load(file, "a", "1");
+        cache.load(otherFile, "a", "2");
+        // The most recent entry is always kept
+        assertThat(cache.stats().entries, equalTo(1));
+        assertTrue(cache.has(otherFile, "a"));
+    }
+
+    @Test
+    public void dropValueComputedAcrossInvalidation() {
+        var v =
+                cache.get(
+                        file,
+                        "a",
+                        () -> {
+                            // The file changes while the value is being computed from its old contents
+                            Cache.invalidateAll(file);
+                            return "1";
+                        });
+        assertThat(v, equalTo("1"));
+        assertFalse(cache.has(file, "a"));
+        assertThat(cache.get(file, "a", () -> "2"), equalTo("2"));
+        assertTrue(cache.has(file, "a"));
+    }
+}
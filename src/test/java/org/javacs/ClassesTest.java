@@ -3,10 +3,20 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.IOException;
 import java.net.URI;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
 import org.javacs.guava.ClassPath;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -28,6 +38,59 @@ public class ClassesTest {
         assertThat(jdk, hasItem("java.util.ArrayList"));
     }
 
+    @Test
+    public void jdkClassesAreShared() {
+        assertThat(ScanClassPath.jdkTopLevelClasses(), sameInstance(ScanClassPath.jdkTopLevelClasses()));
+    }
+
+    @Test
+    public void readCatalog() throws Exception {
+        var dir = Files.createTempDirectory("jdk-catalog-test");
+        var catalog = dir.resolve("classes.txt");
+        ScanClassPath.writeCatalog(catalog, List.of("java.util.List", "java.io.File", "java.lang.String"));
+        var classes = ScanClassPath.readCatalog(catalog);
+        assertThat(classes, contains("java.io.File", "java.lang.String", "java.util.List"));
+        assertTrue(classes.contains("java.lang.String"));
+        assertFalse(classes.contains("java.lang.Strin"));
+        // The temp file that was moved into place doesn't linger
+        try (var files = Files.list(dir)) {
+            assertThat(files.collect(Collectors.toList()), contains(catalog));
+        }
+        Files.delete(catalog);
+        Files.delete(dir);
+    }
+
+    private static Path jar(Path jar, String classPath, String... classes) throws IOException {
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (classPath != null) manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath);
+        try (var out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            for (var c : classes) {
+                var resource = c.replace('.', '/') + ".class";
+                out.putNextEntry(new JarEntry(resource));
+                out.write(Files.readAllBytes(Paths.get("target/classes").resolve(resource)));
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    @Test
+    public void classPathJars() throws Exception {
+        var dir = Files.createTempDirectory("jars");
+        jar(dir.resolve("other.jar"), null, "org.javacs.CacheDir");
+        var jar = jar(dir.resolve("main.jar"), "other.jar", "org.javacs.Main", "org.javacs.ClassHeader");
+        for (var attempt = 0; attempt < 2; attempt++) {
+            var classes = ScanClassPath.classPathTopLevelClasses(Set.of(jar));
+            assertThat(classes, hasItems("org.javacs.Main", "org.javacs.CacheDir"));
+            // ClassHeader is package-private, so it can't be used outside the jar
+            assertThat(classes, not(hasItem("org.javacs.ClassHeader")));
+        }
+        var index = JarIndex.of(jar);
+        assertThat(index.packages, contains("org.javacs"));
+        assertThat(index.manifestClassPath, contains(dir.resolve("other.jar")));
+    }
+
     @Test
     @Ignore
     public void platformClassPath() throws Exception {
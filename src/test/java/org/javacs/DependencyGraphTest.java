@@ -0,0 +1,50 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DependencyGraphTest {
+    private final DependencyGraph graph = new DependencyGraph();
+    private final Path goTo = FindResource.path("/org/javacs/example/Goto.java");
+    private final Path other = FindResource.path("/org/javacs/example/GotoOther.java");
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @Test
+    public void samePackageReference() {
+        assertThat(graph.dependencies(goTo), hasItem(other));
+        assertThat(graph.dependents(other, 1, 100), hasItem(goTo));
+        assertThat(graph.dependents(other, 1, 100), not(hasItem(other)));
+    }
+
+    @Test
+    public void unchangedSignature() {
+        assertFalse(graph.signatureChanged(other));
+        assertFalse(graph.signatureChanged(other));
+    }
+
+    @Test
+    public void signatureChanged() throws IOException {
+        var file = Files.createTempDirectory("dependency-graph-test").resolve("Example.java");
+        Files.writeString(file, "class Example {\n    int method() {\n        return 1;\n    }\n}\n");
+        assertFalse(graph.signatureChanged(file));
+        // An edit inside a method body doesn't change the signature
+        Files.writeString(
+                file, "class Example {\n    int method() {\n        var x = 2;\n        return x;\n    }\n}\n");
+        assertFalse(graph.signatureChanged(file));
+        // An edit to a parameter list does
+        Files.writeString(file, "class Example {\n    int method(int x) {\n        return x;\n    }\n}\n");
+        assertTrue(graph.signatureChanged(file));
+        assertFalse(graph.signatureChanged(file));
+    }
+}
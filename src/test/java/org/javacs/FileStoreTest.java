@@ -1,9 +1,12 @@
 package org.javacs;
 
-import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import org.javacs.lsp.*;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -19,4 +22,66 @@ public class FileStoreTest {
         var file = FindResource.path("/org/javacs/example/Goto.java");
         assertThat(FileStore.suggestedPackageName(file), equalTo("org.javacs.example"));
     }
+
+    @Test
+    public void reportCrawlProgress() {
+        var counts = new ArrayList<Integer>();
+        FileStore.setWorkspaceRoots(Set.of());
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT), counts::add);
+        assertThat(counts, not(empty()));
+        var last = counts.get(counts.size() - 1);
+        assertThat(last, greaterThan(0));
+        assertThat(counts, everyItem(lessThanOrEqualTo(last)));
+    }
+
+    @Test
+    public void saveSourceSnapshot() {
+        var root = LanguageServerFixture.DEFAULT_WORKSPACE_ROOT.toAbsolutePath().normalize();
+        FileStore.setWorkspaceRoots(Set.of());
+        FileStore.setWorkspaceRoots(Set.of(root));
+        var snapshot = SourceSnapshot.read(CacheDir.workspace(Set.of(root)).resolve("sources.bin"));
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        assertThat(snapshot.sources.get(file).packageName, equalTo("org.javacs.example"));
+        assertThat(snapshot.sources.get(file).modified, equalTo(FileStore.modified(file)));
+        assertThat(snapshot.children(file.getParent()), hasItem(file));
+        assertThat(snapshot.directories, hasKey(root));
+    }
+
+    @Test
+    public void listPackage() {
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        assertThat(FileStore.list("org.javacs.example"), hasItem(file));
+        assertThat(FileStore.list("org.javacs.nosuchpackage"), empty());
+        var root = LanguageServerFixture.DEFAULT_WORKSPACE_ROOT.toAbsolutePath().resolve("src");
+        assertThat(FileStore.sourceRoots(), hasItem(root));
+    }
+
+    @Test
+    public void incrementalChange() {
+        var file = FindResource.path("/org/javacs/example/Goto.java");
+        var uri = file.toUri();
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = uri;
+        open.textDocument.version = 1;
+        open.textDocument.text = "class Foo {\n    void bar() {}\n}\n";
+        FileStore.open(open);
+        try {
+            var insert = new TextDocumentContentChangeEvent();
+            insert.range = new Range(new Position(1, 9), new Position(1, 12));
+            insert.text = "baz";
+            var join = new TextDocumentContentChangeEvent();
+            join.range = new Range(new Position(0, 11), new Position(1, 4));
+            join.text = " ";
+            var change = new DidChangeTextDocumentParams();
+            change.textDocument.uri = uri;
+            change.textDocument.version = 2;
+            change.contentChanges = List.of(insert, join);
+            FileStore.change(change);
+            assertThat(FileStore.contents(file), equalTo("class Foo { void baz() {}\n}\n"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = uri;
+            FileStore.close(close);
+        }
+    }
 }
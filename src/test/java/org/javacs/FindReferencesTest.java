@@ -3,6 +3,7 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import org.javacs.lsp.*;
@@ -56,4 +57,30 @@ public class FindReferencesTest {
         assertThat(items(file, 4, 12), contains("StackedFieldReferences.java(8)"));
         assertThat(items(file, 4, 15), contains("StackedFieldReferences.java(9)"));
     }
+
+    @Test
+    public void findReferencesInEditedFile() {
+        var target = "/org/javacs/example/ConstructorRefs.java";
+        var uri = FindResource.uri("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = uri;
+        open.textDocument.text = FileStore.contents(Paths.get(uri));
+        open.textDocument.version = 1;
+        server.didOpenTextDocument(open);
+        try {
+            var change = new DidChangeTextDocumentParams();
+            change.textDocument.uri = uri;
+            change.textDocument.version = 2;
+            var evt = new TextDocumentContentChangeEvent();
+            evt.text = "package org.javacs.example; class Goto { void test() { new ConstructorRefs(\"2\"); } }";
+            change.contentChanges.add(evt);
+            server.didChangeTextDocument(change);
+            assertThat(items(target, 4, 10), containsInAnyOrder("ConstructorRefs.java(9)", "Goto.java(1)"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = uri;
+            server.didCloseTextDocument(close);
+        }
+        assertThat(items(target, 4, 10), contains("ConstructorRefs.java(9)"));
+    }
 }
@@ -44,11 +44,11 @@ public class IncrementalCompileTest implements TaskListener, DiagnosticListener<
     @Test
     public void taskPool() {
         var fileManager = compiler.getStandardFileManager(this, null, Charset.defaultCharset());
-        var pool = new ReusableCompiler();
+        var pool = new ReusableCompiler(1, () -> fileManager);
         for (var i = 0; i < 2; i++) {
             var files = fileManager.getJavaFileObjects(foo);
             LOG.info(String.format("Compile %d...", i));
-            try (var borrow = pool.getTask(fileManager, this, options, null, files)) {
+            try (var borrow = pool.getTask(this, options, null, files)) {
                 checkInvokeType(borrow.task);
             }
         }
@@ -3,6 +3,8 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Set;
@@ -60,6 +62,80 @@ public class InferConfigTest {
         assertThat(InferConfig.mvnDependencies(Paths.get("pom.xml"), "dependency:list"), not(empty()));
     }
 
+    @Test
+    public void reuseCachedMavenDependencies() throws IOException {
+        var root = Files.createTempDirectory("maven-cache-test");
+        var pomXml = root.resolve("pom.xml");
+        // Not a valid pom, so running maven would fail
+        Files.writeString(pomXml, "<project></project>");
+        var infer = new InferConfig(root, Set.of(), mavenHome, gradleHome);
+        var jar =
+                mavenHome
+                        .resolve("repository/com/external/external-library/1.2/external-library-1.2.jar")
+                        .toAbsolutePath();
+        var cacheFile = infer.mavenCacheFile("dependency:list");
+        InferConfig.writePathCache(cacheFile, infer.mavenKey(pomXml, "dependency:list"), Set.of(jar));
+        assertThat(infer.classPath(), contains(jar));
+        // When the pom changes and needs maven, the old result is still used until maven finishes
+        Files.writeString(
+                pomXml,
+                "<project><dependencies><dependency>"
+                        + "<groupId>com.missing</groupId><artifactId>missing</artifactId><version>1.0</version>"
+                        + "</dependency></dependencies></project>");
+        assertThat(infer.classPath(), contains(jar));
+    }
+
+    @Test
+    public void ignoreCommentedLocalRepository() throws IOException {
+        var home = Files.createTempDirectory("maven-settings-test");
+        // Like the settings.xml that ships with maven, which shows <localRepository> in a comment
+        Files.writeString(
+                home.resolve("settings.xml"),
+                "<settings>\n"
+                        + "  <!-- localRepository\n"
+                        + "   | The path to the local repository maven will use to store artifacts.\n"
+                        + "  <localRepository>/path/to/local/repo</localRepository>\n"
+                        + "  -->\n"
+                        + "</settings>\n");
+        var jar = home.resolve("repository/com/external/external-library/1.2/external-library-1.2.jar");
+        Files.createDirectories(jar.getParent());
+        Files.createFile(jar);
+        var infer = new InferConfig(workspaceRoot, externalDependencies, home, Paths.get("nowhere"));
+        assertThat(infer.classPath(), contains(jar));
+    }
+
+    @Test
+    public void localRepositoryFromSettings() throws IOException {
+        var home = Files.createTempDirectory("maven-settings-test");
+        var repository = Files.createTempDirectory("maven-repository-test");
+        Files.writeString(
+                home.resolve("settings.xml"),
+                "<settings><localRepository>" + repository + "</localRepository></settings>");
+        var jar = repository.resolve("com/external/external-library/1.2/external-library-1.2.jar");
+        Files.createDirectories(jar.getParent());
+        Files.createFile(jar);
+        var infer = new InferConfig(workspaceRoot, externalDependencies, home, Paths.get("nowhere"));
+        assertThat(infer.classPath(), contains(jar));
+    }
+
+    @Test
+    public void gradleIndexFindsNewVersions() throws IOException {
+        var home = Files.createTempDirectory("gradle-index-test");
+        var nowhere = Paths.get("nowhere");
+        var group = home.resolve("caches/modules-2/files-2.1/com.external");
+        var v1 = group.resolve("external-library/1.1/xxx/external-library-1.1.jar");
+        Files.createDirectories(v1.getParent());
+        Files.createFile(v1);
+        var infer = new InferConfig(workspaceRoot, Set.of("com.external:external-library:1.1"), nowhere, home);
+        assertThat(infer.classPath(), contains(v1));
+        // Adding a version doesn't change the modified time of the group directory, but it should still be found
+        var v2 = group.resolve("external-library/1.2/yyy/external-library-1.2.jar");
+        Files.createDirectories(v2.getParent());
+        Files.createFile(v2);
+        infer = new InferConfig(workspaceRoot, Set.of("com.external:external-library:1.2"), nowhere, home);
+        assertThat(infer.classPath(), contains(v2));
+    }
+
     @Test
     public void thisProjectClassPath() {
         assertThat(
@@ -3,8 +3,13 @@ package org.javacs;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import com.sun.source.util.JavacTask;
 import java.nio.file.*;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.junit.*;
 
 public class JavaCompilerServiceTest {
@@ -23,4 +28,102 @@ public class JavaCompilerServiceTest {
     public void setWorkspaceRoot() {
         FileStore.setWorkspaceRoots(Set.of(simpleProjectSrc()));
     }
+
+    @Test
+    public void reuseRecentCompiles() {
+        var hello = simpleProjectSrc().resolve("HelloWorld.java").toAbsolutePath();
+        var goTo = simpleProjectSrc().resolve("GotoDefinition.java").toAbsolutePath();
+        JavacTask first;
+        try (var task = compiler.compile(hello)) {
+            first = task.task;
+        }
+        try (var task = compiler.compile(goTo)) {
+            assertThat(task.task, not(sameInstance(first)));
+        }
+        try (var task = compiler.compile(hello)) {
+            assertThat(task.task, sameInstance(first));
+        }
+    }
+
+    @Test
+    public void reuseRecentParses() {
+        var hello = simpleProjectSrc().resolve("HelloWorld.java").toAbsolutePath();
+        var goTo = simpleProjectSrc().resolve("GotoDefinition.java").toAbsolutePath();
+        var first = compiler.parse(hello).root;
+        compiler.parse(goTo);
+        assertThat(compiler.parse(hello).root, sameInstance(first));
+    }
+
+    @Test
+    public void skipAnalyzingErrorStorms() {
+        var file = simpleProjectSrc().resolve("Storm.java").toAbsolutePath();
+        var contents = "class Storm { void test() { " + "int ;".repeat(80) + " } }";
+        var source = new SourceFileObject(file, contents, Instant.now());
+        try (var task = compiler.compile(List.of(source))) {
+            assertThat(task.skipped, contains(file.toUri()));
+            assertThat(task.diagnostics, hasSize(CompileBatch.MAX_DIAGNOSTICS_PER_FILE));
+            assertThat(task.droppedDiagnostics, hasKey(file.toUri()));
+        }
+    }
+
+    @Test
+    public void stormDoesNotHideOtherFiles() {
+        var storm = simpleProjectSrc().resolve("Storm.java").toAbsolutePath();
+        var other = simpleProjectSrc().resolve("Other.java").toAbsolutePath();
+        var stormContents = "class Storm { void test() { " + "int ;".repeat(200) + " } }";
+        var stormSource = new SourceFileObject(storm, stormContents, Instant.now());
+        var otherSource = new SourceFileObject(other, "class Other { int x = \"\"; }", Instant.now());
+        try (var task = compiler.compile(List.of(stormSource, otherSource))) {
+            var fromOther = new ArrayList<String>();
+            for (var d : task.diagnostics) {
+                if (d.getSource().toUri().equals(other.toUri())) fromOther.add(d.getCode());
+            }
+            assertThat(fromOther, hasItem("compiler.err.prob.found.req"));
+        }
+    }
+
+    @Test
+    public void cancelCompile() {
+        var hello = simpleProjectSrc().resolve("HelloWorld.java").toAbsolutePath();
+        try {
+            compiler.compile(List.of(hello), () -> true).close();
+            fail("Compile wasn't cancelled");
+        } catch (CancellationException e) {
+            // The compiler is returned, and the cancelled batch isn't cached
+        }
+        try (var task = compiler.compile(hello)) {
+            assertThat(task.roots, hasSize(1));
+            assertThat(task.diagnostics, empty());
+        }
+    }
+
+    @Test
+    public void compileOnSeveralThreads() throws Exception {
+        var hello = simpleProjectSrc().resolve("HelloWorld.java").toAbsolutePath();
+        var goTo = simpleProjectSrc().resolve("GotoDefinition.java").toAbsolutePath();
+        var pool = Executors.newFixedThreadPool(2);
+        try (var task = compiler.compile(hello)) {
+            // Another thread can compile while this task is still open
+            var other =
+                    pool.submit(
+                            () -> {
+                                try (var otherTask = compiler.compile(goTo)) {
+                                    return otherTask.task;
+                                }
+                            });
+            assertThat(other.get(10, TimeUnit.SECONDS), not(sameInstance(task.task)));
+            // ...but it can't share this task, because javac isn't thread-safe
+            var same =
+                    pool.submit(
+                            () -> {
+                                try (var sameTask = compiler.compile(hello)) {
+                                    return sameTask.task;
+                                }
+                            });
+            Thread.sleep(100);
+            assertFalse(same.isDone());
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
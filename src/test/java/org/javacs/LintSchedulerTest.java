@@ -0,0 +1,82 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LintSchedulerTest {
+    private final LinkedBlockingQueue<List<Path>> linted = new LinkedBlockingQueue<>();
+    private final LintScheduler scheduler = new LintScheduler((files, edited, cancelled) -> linted.add(files));
+    private final Path goTo = FindResource.path("/org/javacs/example/Goto.java");
+    private final Path other = FindResource.path("/org/javacs/example/GotoOther.java");
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @Test
+    public void lintOnceAfterSeveralEdits() throws InterruptedException {
+        scheduler.edited(goTo);
+        scheduler.edited(goTo);
+        scheduler.edited(goTo);
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(goTo));
+        assertThat(linted.poll(LintScheduler.MAX_DELAY.toMillis() * 2, TimeUnit.MILLISECONDS), nullValue());
+    }
+
+    @Test
+    public void focusedDocumentFirst() throws InterruptedException {
+        scheduler.edited(goTo);
+        scheduler.schedule(List.of(other));
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(goTo));
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(other));
+    }
+
+    @Test
+    public void batchGivesWayToFocusedDocument() throws InterruptedException {
+        var started = new CountDownLatch(1);
+        var scheduler =
+                new LintScheduler(
+                        (files, edited, cancelled) -> {
+                            if (!edited && linted.isEmpty()) {
+                                // The first batch is slow, and only stops when it's cancelled
+                                started.countDown();
+                                var giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                                while (!cancelled.getAsBoolean() && System.nanoTime() - giveUp < 0) {
+                                    Thread.onSpinWait();
+                                }
+                                linted.add(List.of());
+                                return false;
+                            }
+                            linted.add(files);
+                            return true;
+                        });
+        scheduler.schedule(List.of(other));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scheduler.edited(goTo);
+        assertThat(linted.poll(10, TimeUnit.SECONDS), empty());
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(goTo));
+        // The cancelled batch is linted again
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(other));
+    }
+
+    @Test
+    public void onlyTimeFinishedLints() throws InterruptedException {
+        var scheduler = new LintScheduler((files, edited, cancelled) -> !linted.add(files));
+        scheduler.edited(goTo);
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(goTo));
+        // Lints run one at a time, so once other is linted, the lint of goTo has returned
+        scheduler.schedule(List.of(other));
+        assertThat(linted.poll(10, TimeUnit.SECONDS), contains(other));
+        // Nothing was compiled, so there's nothing to learn about how long goTo takes
+        assertThat(scheduler.delay(goTo), equalTo(LintScheduler.DEFAULT_DELAY));
+    }
+}
@@ -0,0 +1,130 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.junit.Test;
+
+public class MavenResolverTest {
+    private static final Path EXAMPLE_REPOSITORY =
+            Paths.get("src/test/examples/home-dir/.m2/repository").toAbsolutePath();
+
+    @Test
+    public void transitiveDependencies() throws IOException {
+        var repository = Files.createTempDirectory("maven-resolver-repository");
+        var b = install(repository, "b", dependency("d", "compile"));
+        var c = install(repository, "c", "");
+        var d = install(repository, "d", "");
+        install(repository, "e", "");
+        var a =
+                install(
+                        repository,
+                        "a",
+                        dependency("b", "compile") + dependency("c", "runtime") + dependency("e", "test"));
+        var root = Files.createTempDirectory("maven-resolver-test");
+        Files.writeString(root.resolve("pom.xml"), project("project", dependency("a", "compile")));
+        var resolver = new MavenResolver(repository);
+        // Test dependencies of dependencies are left out, like maven does
+        assertThat(resolver.resolve(root.resolve("pom.xml"), false).get(), containsInAnyOrder(a, b, c, d));
+    }
+
+    @Test
+    public void profileInDependencyIsMiss() throws IOException {
+        var repository = Files.createTempDirectory("maven-resolver-repository");
+        install(repository, "a", "");
+        var pom = repository.resolve("com/example/a/1/a-1.pom");
+        Files.writeString(
+                pom,
+                Files.readString(pom)
+                        .replace(
+                                "</project>",
+                                "<profiles><profile><id>p</id><properties><v>2</v></properties></profile></profiles>"
+                                        + "</project>"));
+        var root = Files.createTempDirectory("maven-resolver-test");
+        Files.writeString(root.resolve("pom.xml"), project("project", dependency("a", "compile")));
+        var resolver = new MavenResolver(repository);
+        assertThat(resolver.resolve(root.resolve("pom.xml"), false), equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void missingSourcesJarIsMiss() throws IOException {
+        var repository = Files.createTempDirectory("maven-resolver-repository");
+        install(repository, "a", "");
+        var root = Files.createTempDirectory("maven-resolver-test");
+        Files.writeString(root.resolve("pom.xml"), project("project", dependency("a", "compile")));
+        var resolver = new MavenResolver(repository);
+        assertThat(resolver.resolve(root.resolve("pom.xml"), false).isPresent(), equalTo(true));
+        assertThat(resolver.resolve(root.resolve("pom.xml"), true), equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void interpolateManagedVersion() throws IOException {
+        var root = Files.createTempDirectory("maven-resolver-test");
+        Files.writeString(
+                root.resolve("pom.xml"),
+                "<project><groupId>com.example</groupId><artifactId>parent</artifactId><version>1</version>"
+                        + "<properties><library.version>1.2</library.version></properties>"
+                        + "<modules><module>child</module></modules>"
+                        + "<dependencyManagement><dependencies><dependency>"
+                        + "<groupId>com.external</groupId><artifactId>external-library</artifactId>"
+                        + "<version>${library.version}</version>"
+                        + "</dependency></dependencies></dependencyManagement></project>");
+        Files.createDirectory(root.resolve("child"));
+        Files.writeString(
+                root.resolve("child/pom.xml"),
+                "<project><parent><groupId>com.example</groupId><artifactId>parent</artifactId><version>1</version>"
+                        + "</parent><artifactId>child</artifactId><dependencies><dependency>"
+                        + "<groupId>com.external</groupId><artifactId>external-library</artifactId>"
+                        + "</dependency></dependencies></project>");
+        var resolver = new MavenResolver(EXAMPLE_REPOSITORY);
+        var jar = EXAMPLE_REPOSITORY.resolve("com/external/external-library/1.2/external-library-1.2.jar");
+        assertThat(resolver.resolve(root.resolve("pom.xml"), false).get(), contains(jar));
+        var sources = EXAMPLE_REPOSITORY.resolve("com/external/external-library/1.2/external-library-1.2-sources.jar");
+        assertThat(resolver.resolve(root.resolve("pom.xml"), true).get(), contains(sources));
+    }
+
+    @Test
+    public void missingArtifact() throws IOException {
+        var root = Files.createTempDirectory("maven-resolver-test");
+        Files.writeString(
+                root.resolve("pom.xml"),
+                "<project><groupId>com.example</groupId><artifactId>example</artifactId><version>1</version>"
+                        + "<dependencies><dependency>"
+                        + "<groupId>com.external</groupId><artifactId>external-library</artifactId>"
+                        + "<version>9.9</version>"
+                        + "</dependency></dependencies></project>");
+        var resolver = new MavenResolver(EXAMPLE_REPOSITORY);
+        assertThat(resolver.resolve(root.resolve("pom.xml"), false), equalTo(Optional.empty()));
+    }
+
+    private static String dependency(String artifactId, String scope) {
+        return "<dependency><groupId>com.example</groupId><artifactId>"
+                + artifactId
+                + "</artifactId><version>1</version><scope>"
+                + scope
+                + "</scope></dependency>";
+    }
+
+    private static String project(String artifactId, String dependencies) {
+        return "<project><groupId>com.example</groupId><artifactId>"
+                + artifactId
+                + "</artifactId><version>1</version><dependencies>"
+                + dependencies
+                + "</dependencies></project>";
+    }
+
+    /** Put com.example:`artifactId`:1 in `repository`, with `dependencies` in its pom, and return the jar */
+    private static Path install(Path repository, String artifactId, String dependencies) throws IOException {
+        var dir = repository.resolve("com/example").resolve(artifactId).resolve("1");
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve(artifactId + "-1.pom"), project(artifactId, dependencies));
+        var jar = dir.resolve(artifactId + "-1.jar");
+        Files.write(jar, new byte[0]);
+        return jar;
+    }
+}
@@ -0,0 +1,52 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackageGraphTest {
+    private final JavaCompilerService compiler =
+            new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @Test
+    public void importersOfPackage() {
+        var graph = FileStore.packageGraph();
+        // ReferenceIndirectImport imports org.javacs.other.ImportDirectly
+        assertThat(graph.importersOf("org.javacs.other"), hasItems("org.javacs.other", "org.javacs.example"));
+        assertThat(graph.importersOf("org.javacs.example"), not(hasItem("org.javacs.other")));
+    }
+
+    @Test
+    public void reachableFromPackage() {
+        var graph = FileStore.packageGraph();
+        assertThat(graph.reachableFrom("org.javacs.other"), hasItem("org.javacs.example"));
+    }
+
+    @Test
+    public void staticImport() {
+        var graph = FileStore.packageGraph();
+        // CallStaticImport only refers to org.javacs.other through `import static`
+        assertThat(graph.importersOf("org.javacs.other"), hasItem("org.javacs.statics"));
+        var caller = FindResource.path("/org/javacs/statics/CallStaticImport.java");
+        var found = compiler.findMemberReferences("org.javacs.other.HasStaticMethods", "importedMethod");
+        assertThat(found, hasItemInArray(caller));
+    }
+
+    @Test
+    public void fullyQualifiedName() {
+        var graph = FileStore.packageGraph();
+        assertThat(graph.reachableFrom("org.javacs.other"), not(hasItem("org.javacs.qualified")));
+        var caller = FindResource.path("/org/javacs/qualified/CallFullyQualified.java");
+        var found = compiler.findMemberReferences("org.javacs.other.HasStaticMethods", "qualifiedMethod");
+        assertThat(found, hasItemInArray(caller));
+    }
+}
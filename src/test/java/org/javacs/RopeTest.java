@@ -0,0 +1,49 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RopeTest {
+    @Test
+    public void lineOffsets() {
+        var rope = Rope.of("one\ntwo\r\n\nfour");
+        assertThat(rope.lineCount(), equalTo(4));
+        assertThat(rope.offset(0, 0), equalTo(0));
+        assertThat(rope.offset(0, 2), equalTo(2));
+        assertThat(rope.offset(1, 0), equalTo(4));
+        assertThat(rope.offset(2, 0), equalTo(9));
+        assertThat(rope.offset(3, 4), equalTo(14));
+        // Past the end is clamped
+        assertThat(rope.offset(3, 10), equalTo(14));
+        assertThat(rope.offset(10, 0), equalTo(14));
+    }
+
+    @Test
+    public void randomEdits() {
+        var random = new Random(0);
+        var line = "        System.out.println(\"hello world\");\n";
+        var expected = new StringBuilder(line.repeat(5_000));
+        var rope = Rope.of(expected.toString());
+        for (var i = 0; i < 5_000; i++) {
+            var start = random.nextInt(expected.length() + 1);
+            var end = Math.min(expected.length(), start + random.nextInt(20));
+            var text = random.nextInt(10) == 0 ? "\n" : "x".repeat(random.nextInt(3));
+            expected.replace(start, end, text);
+            rope = rope.replace(start, end, text);
+
+            var index = random.nextInt(expected.length());
+            assertThat(rope.charAt(index), equalTo(expected.charAt(index)));
+        }
+        assertThat(rope.length(), equalTo(expected.length()));
+        assertThat(rope.toString(), equalTo(expected.toString()));
+        // Check a line offset against a linear scan
+        var lineStart = 0;
+        for (var l = 0; l < 1000; l++) {
+            lineStart = expected.indexOf("\n", lineStart) + 1;
+        }
+        assertThat(rope.offset(1000, 3), equalTo(lineStart + 3));
+    }
+}
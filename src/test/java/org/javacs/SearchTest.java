@@ -66,6 +66,32 @@ public class SearchTest {
         assertThat(all, hasItem("methodStatic"));
     }
 
+    @Test
+    public void searchEditedFile() {
+        var uri = FindResource.uri("/org/javacs/example/Goto.java");
+        var open = new DidOpenTextDocumentParams();
+        open.textDocument.uri = uri;
+        open.textDocument.text = FileStore.contents(Paths.get(uri));
+        open.textDocument.version = 1;
+        server.didOpenTextDocument(open);
+        try {
+            assertThat(searchWorkspace("freshlyAddedMethod", Integer.MAX_VALUE), empty());
+            var change = new DidChangeTextDocumentParams();
+            change.textDocument.uri = uri;
+            change.textDocument.version = 2;
+            var evt = new TextDocumentContentChangeEvent();
+            evt.text = "package org.javacs.example; class Goto { void freshlyAddedMethod() { } }";
+            change.contentChanges.add(evt);
+            server.didChangeTextDocument(change);
+            assertThat(searchWorkspace("fAddedM", Integer.MAX_VALUE), hasItem("freshlyAddedMethod"));
+        } finally {
+            var close = new DidCloseTextDocumentParams();
+            close.textDocument.uri = uri;
+            server.didCloseTextDocument(close);
+        }
+        assertThat(searchWorkspace("freshlyAddedMethod", Integer.MAX_VALUE), empty());
+    }
+
     @Test
     public void symbolsInFile() {
         var path = "/org/javacs/example/AutocompleteMemberFixed.java";
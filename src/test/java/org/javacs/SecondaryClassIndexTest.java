@@ -0,0 +1,55 @@
+package org.javacs;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SecondaryClassIndexTest {
+    private final JavaCompilerService compiler =
+            new JavaCompilerService(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+
+    @Before
+    public void setWorkspaceRoot() {
+        FileStore.setWorkspaceRoots(Set.of(LanguageServerFixture.DEFAULT_WORKSPACE_ROOT));
+    }
+
+    @Test
+    public void findClassInFileWithDifferentName() {
+        var declaringFile = FindResource.path("/org/javacs/example/ContainsGotoPackagePrivate.java");
+        var classes = FileStore.secondaryClassIndex().classesIn("org.javacs.example");
+        assertThat(classes, hasEntry("GotoPackagePrivate", declaringFile));
+        assertThat(classes, not(hasKey("ContainsGotoPackagePrivate")));
+    }
+
+    @Test
+    public void compileWithDeclaringFile() {
+        var file = FindResource.path("/org/javacs/example/ReferenceGotoPackagePrivate.java");
+        try (var task = compiler.compile(file)) {
+            // The declaring file is compiled with the batch, but it isn't a root
+            assertThat(task.roots, hasSize(1));
+            assertThat(task.diagnostics, empty());
+        }
+    }
+
+    @Test
+    public void avoidSecondCompile() {
+        var file = FindResource.path("/org/javacs/example/ReferenceGotoPackagePrivate.java");
+        var declaringFile = FindResource.path("/org/javacs/example/ContainsGotoPackagePrivate.java");
+        var sources = JavaCompilerService.sourceFiles(List.of(file));
+        var dependencies = compiler.secondaryClassFiles(sources);
+        assertThat(dependencies, contains(declaringFile));
+        // The first attempt already has everything it needs, so doCompile won't compile the batch again
+        var firstAttempt =
+                new CompileBatch(compiler, sources, JavaCompilerService.sourceFiles(dependencies), () -> false);
+        try {
+            assertThat(firstAttempt.needsAdditionalSources(), empty());
+        } finally {
+            firstAttempt.borrow.close();
+        }
+    }
+}
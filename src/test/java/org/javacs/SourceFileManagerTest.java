@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
 import java.util.logging.Logger;
 import javax.tools.*;
@@ -84,5 +85,61 @@ public class SourceFileManagerTest {
         assertTrue(header.isPublic);
     }
 
+    @Test
+    public void eraseMethodBodiesOfClosedFiles() throws IOException {
+        var erasing = new SourceFileManager(true);
+        var file =
+                erasing.getJavaFileForInput(
+                        StandardLocation.SOURCE_PATH, "org.javacs.example.GotoOther", JavaFileObject.Kind.SOURCE);
+        var original = FileStore.contents(((SourceFileObject) file).path);
+        var erased = file.getCharContent(true).toString();
+        // Signatures stay where they were, but bodies are blank
+        assertThat(erased.length(), equalTo(original.length()));
+        assertThat(erased, containsString("public String method() {"));
+        assertThat(erased, not(containsString("return \"foo\";")));
+        assertThat(erased, containsString("throw null;"));
+    }
+
+    @Test
+    public void eraseOnlyFilesThatAreRead() throws IOException {
+        var erasing = new SourceFileManager(true);
+        Cache.clearAll();
+        var kinds = Set.of(JavaFileObject.Kind.SOURCE);
+        var files = new ArrayList<JavaFileObject>();
+        erasing.list(StandardLocation.SOURCE_PATH, "org.javacs.example", kinds, false).forEach(files::add);
+        assertThat(files, hasSize(greaterThan(1)));
+        // Listing a package doesn't erase anything, only reading a file does
+        assertThat(erasedSources(), equalTo(0));
+        files.get(0).getCharContent(true);
+        assertThat(erasedSources(), equalTo(1));
+    }
+
+    private static int erasedSources() {
+        for (var stats : Cache.allStats()) {
+            if (stats.name.equals("erasedSources")) return stats.entries;
+        }
+        throw new AssertionError("no erasedSources cache");
+    }
+
+    @Test
+    public void erasedBodiesCompileWithoutErrors() {
+        var compiler =
+                new JavaCompilerService(
+                        Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), 1, true);
+        var file = src.resolve("org/javacs/example/UseErased.java").toAbsolutePath();
+        var contents =
+                "package org.javacs.example;\n"
+                        + "class UseErased {\n"
+                        + "    String test() {\n"
+                        + "        new ErasedConstructors.Subclass();\n"
+                        + "        return new ErasedConstructors().field() + new GotoOther(\"x\").method();\n"
+                        + "    }\n"
+                        + "}\n";
+        try (var task = compiler.compile(List.of(new SourceFileObject(file, contents, Instant.now())))) {
+            // GotoOther and ErasedConstructors are loaded from the source path, with their method bodies erased
+            assertThat(task.diagnostics, empty());
+        }
+    }
+
     private static final Logger LOG = Logger.getLogger("main");
 }
@@ -10,6 +10,8 @@ import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -79,6 +81,18 @@ public class LspTest {
         assertThat(bufferToString(), equalTo(expected));
     }
 
+    @Test
+    public void writeSeveralResponses() {
+        var big = "x".repeat(100_000);
+        LSP.respond(writer, 1, big);
+        LSP.respond(writer, 2, 2);
+        var first = String.format("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":\"%s\"}", big);
+        var expected =
+                String.format("Content-Length: %d\r\n\r\n%s", first.length(), first)
+                        + "Content-Length: 35\r\n\r\n{\"jsonrpc\":\"2.0\",\"id\":2,\"result\":2}";
+        assertThat(bufferToString(), equalTo(expected));
+    }
+
     @Test
     public void readMessage() throws IOException {
         var message = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{}}";
@@ -117,6 +131,23 @@ public class LspTest {
         assertThat(parse.params, equalTo(gson.toJsonTree(params)));
     }
 
+    @Test
+    public void readSeveralMessages() throws IOException {
+        var big = "{\"text\":\"" + "x".repeat(200_000) + "\"}";
+        var small = "{\"jsonrpc\":\"2.0\",\"method\":\"initialized\"}";
+        writer.write(String.format("Content-Length: %d\r\n\r\n", big.length()).getBytes());
+        writer.write(big.getBytes());
+        var headers = "content-length: %d\r\nContent-Type: application/vscode-jsonrpc; charset=utf-8\r\n\r\n";
+        writer.write(String.format(headers, small.length()).getBytes());
+        writer.write(small.getBytes());
+        writer.close();
+
+        var messages = new FramedMessageReader(buffer);
+        assertThat(messages.nextString(), equalTo(big));
+        assertThat(messages.nextString(), equalTo(small));
+        assertThat(messages.nextString(), nullValue());
+    }
+
     @Test
     public void excludeDefaults() {
         var item = new CompletionItem();
@@ -124,4 +155,46 @@ public class LspTest {
 
         assertThat(text, equalTo("{\"kind\":0}"));
     }
+
+    private void sendMessage(PipedOutputStream client, String message) throws IOException {
+        var header = String.format("Content-Length: %d\r\n\r\n", message.getBytes().length);
+        client.write(header.getBytes());
+        client.write(message.getBytes());
+    }
+
+    @Test
+    public void cancelRunningRequest() throws Exception {
+        var started = new CountDownLatch(1);
+        var finish = new CountDownLatch(1);
+        class SlowServer extends LanguageServer {
+            @Override
+            public Optional<Hover> hover(TextDocumentPositionParams params) {
+                started.countDown();
+                try {
+                    finish.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return Optional.empty();
+            }
+        }
+        var client = new PipedOutputStream();
+        var receive = new PipedInputStream(client, 1024 * 1024);
+        var server = new Thread(() -> LSP.connect(__ -> new SlowServer(), receive, writer));
+        server.start();
+
+        sendMessage(client, "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"textDocument/hover\",\"params\":{}}");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        sendMessage(client, "{\"jsonrpc\":\"2.0\",\"method\":\"$/cancelRequest\",\"params\":{\"id\":1}}");
+        // The response comes back right away, without waiting for hover to finish
+        var response = LSP.nextToken(buffer);
+        assertThat(response, containsString("\"id\":1"));
+        assertThat(response, containsString("\"code\":-32800"));
+
+        finish.countDown();
+        sendMessage(client, "{\"jsonrpc\":\"2.0\",\"method\":\"exit\"}");
+        server.join(10_000);
+        // When hover finishes, its result is discarded
+        assertThat(buffer.available(), equalTo(0));
+    }
 }